@@ -19,6 +19,8 @@ import java.security.spec.InvalidKeySpecException;
 import java.security.spec.PKCS8EncodedKeySpec;
 import java.security.spec.X509EncodedKeySpec;
 import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.ThreadLocalRandom;
 
 import org.apache.commons.codec.DecoderException;
@@ -41,6 +43,14 @@ public class SecUtils {
 	public static final String HASH_SHA1 = "sha1";
 
 	public static final String KEY_BASE64 = DECODE_BASE64;
+	
+	private static final ThreadLocal<Map<String, Signature>> VERIFY_SIGNATURES = new ThreadLocal<Map<String, Signature>>() {
+		
+		@Override
+		protected Map<String, Signature> initialValue() {
+			return new HashMap<String, Signature>();
+		}
+	};
 
 	public static void main(String[] args) throws FailedVerificationException {
 		
@@ -259,7 +269,7 @@ public class SecUtils {
 			return false;
 		}
 		try {
-			Signature sig = Signature.getInstance(getInternalSigAlgo(sigAlgo));
+			Signature sig = getVerifySignature(getInternalSigAlgo(sigAlgo));
 			sig.initVerify(keyPair.getPublic());
 			sig.update(msg);
 			return sig.verify(signature);
@@ -272,6 +282,17 @@ public class SecUtils {
 		}
 	}
 
+	private static Signature getVerifySignature(String algo) throws NoSuchAlgorithmException {
+		// signature is reinitialized by initVerify, so instance could be reused by the same thread
+		Map<String, Signature> signatures = VERIFY_SIGNATURES.get();
+		Signature sig = signatures.get(algo);
+		if (sig == null) {
+			sig = Signature.getInstance(algo);
+			signatures.put(algo, sig);
+		}
+		return sig;
+	}
+
 	private static String getInternalSigAlgo(String sigAlgo) {
 		return sigAlgo.equals(SIG_ALGO_ECDSA)? SIG_ALGO_NONE_EC : sigAlgo;
 	}
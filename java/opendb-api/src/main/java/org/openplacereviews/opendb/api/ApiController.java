@@ -3,7 +3,6 @@ package org.openplacereviews.opendb.api;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 
@@ -17,6 +16,7 @@ import org.openplacereviews.opendb.ops.OpBlockChain.ObjectsSearchRequest;
 import org.openplacereviews.opendb.ops.OpBlockchainRules;
 import org.openplacereviews.opendb.ops.OpObject;
 import org.openplacereviews.opendb.ops.OpOperation;
+import org.openplacereviews.opendb.ops.de.CompoundKey;
 import org.openplacereviews.opendb.scheduled.OpenDBScheduledServices;
 import org.openplacereviews.opendb.service.BlocksManager;
 import org.openplacereviews.opendb.service.LogOperationService;
@@ -120,10 +120,6 @@ public class ApiController {
 		public Collection<OpBlock> blocks;
 	}
 
-	protected static class ObjectsResult {
-		public Collection<OpObject> objects;
-	}
-
 	@GetMapping(path = "/blocks", produces = "text/json;charset=UTF-8")
 	@ResponseBody
 	public String blocksList(@RequestParam(required = false, defaultValue = "50") int depth,
@@ -134,14 +130,10 @@ public class ApiController {
 				blocks = new ArrayList<OpBlock>(manager.getBlockchain().getBlockHeaders(-1));
 				Collections.reverse(blocks);
 			} else {
-				OpBlock found = manager.getBlockchain().getBlockHeaderByRawHash(from);
+				OpBlockChain blc = manager.getBlockchain();
+				OpBlock found = blc.getBlockHeaderByRawHash(from);
 				if (found != null) {
-					depth = manager.getBlockchain().getLastBlockId() - found.getBlockId() + 2; // +1 extra
-					blocks = new LinkedList<OpBlock>(manager.getBlockchain().getBlockHeaders(depth));
-					Collections.reverse(blocks);
-					while (!blocks.isEmpty() && !OUtils.equals(blocks.get(0).getRawHash(), from)) {
-						blocks.remove(0);
-					}
+					blocks = blc.getBlockHeadersFromId(found.getBlockId());
 				} else {
 					blocks = new ArrayList<OpBlock>(manager.getBlockchain().getBlockHeaders(3));
 				}
@@ -185,14 +177,32 @@ public class ApiController {
 	@GetMapping(path = "/objects", produces = "text/json;charset=UTF-8")
 	@ResponseBody
 	public String objects(@RequestParam(required = true) String type,
-			@RequestParam(required = false, defaultValue = "100") int limit) throws FailedVerificationException {
+			@RequestParam(required = false, defaultValue = "100") int limit,
+			@RequestParam(required = false) String after, @RequestParam(required = false) String after2)
+			throws FailedVerificationException {
 		OpBlockChain blc = manager.getBlockchain();
-		ObjectsResult res = new ObjectsResult();
 		ObjectsSearchRequest r = new ObjectsSearchRequest();
 		r.limit = limit;
-		blc.getObjects(type, r);
-		res.objects = r.result;
-		return formatter.fullObjectToJson(res);
+		r.requestJson = true;
+		if (limit > 0) {
+			// pages are ordered by key, next page starts after id of the last object
+			blc.getObjectsPage(type, OUtils.isEmpty(after) ? null : 
+				new CompoundKey(after, OUtils.isEmpty(after2) ? null : after2), r);
+		} else {
+			blc.getObjects(type, r);
+		}
+		// {"objects":[...]}, objects loaded from db are already serialized
+		StringBuilder res = new StringBuilder("{\"objects\":[");
+		boolean first = true;
+		for (OpObject o : r.result) {
+			res.append(first ? "" : ",").append(formatter.fullObjectToJson(o));
+			first = false;
+		}
+		for (String json : r.jsonResult) {
+			res.append(first ? "" : ",").append(json);
+			first = false;
+		}
+		return res.append("]}").toString();
 	}
 
 	@GetMapping(path = "/object-by-id", produces = "text/json;charset=UTF-8")
@@ -200,13 +210,8 @@ public class ApiController {
 	public String objects(@RequestParam(required = true) String type, @RequestParam(required = false) String key,
 			@RequestParam(required = false) String key2) throws FailedVerificationException {
 		OpBlockChain blc = manager.getBlockchain();
-		OpObject obj;
-		if (OUtils.isEmpty(key2)) {
-			obj = blc.getObjectByName(type, key);
-		} else {
-			obj = blc.getObjectByName(type, key, key2);
-		}
-		return formatter.fullObjectToJson(obj);
+		String json = blc.getObjectFullJson(type, key, OUtils.isEmpty(key2) ? null : key2);
+		return json == null ? formatter.fullObjectToJson(null) : json;
 	}
 
 }
\ No newline at end of file
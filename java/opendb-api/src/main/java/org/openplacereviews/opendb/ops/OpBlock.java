@@ -1,19 +1,23 @@
 package org.openplacereviews.opendb.ops;
 
-import java.lang.reflect.Type;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicReference;
 
-import com.google.gson.JsonArray;
-import com.google.gson.JsonDeserializationContext;
-import com.google.gson.JsonDeserializer;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParseException;
-import com.google.gson.JsonSerializationContext;
-import com.google.gson.JsonSerializer;
+import org.openplacereviews.opendb.ops.de.OpHash;
+import org.openplacereviews.opendb.util.JsonFormatter;
+
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 
 public class OpBlock extends OpObject {
 	
@@ -40,12 +44,22 @@ public class OpBlock extends OpObject {
 	// cache for immutable
 	private int blockId = -1;
 	private String rawHash;
+	private OpHash opHash;
+	// calculated by rules, cache for immutable
+	String merkleTreeHash;
+	String sigMerkleTreeHash;
+	String calculatedHash;
+	// shared by all headers of superblock, so new block doesn't rewrite every header
+	transient AtomicReference<String> superblockHash;
 	
 	public OpBlock() {
 	}
 	
 	public OpBlock(OpBlock cp, boolean copyOperations, boolean copyCacheFields) {
 		super(cp, copyCacheFields);
+		if(copyCacheFields) {
+			this.superblockHash = cp.superblockHash;
+		}
 		if(copyOperations) {
 			for(OpOperation o : cp.operations) {
 				operations.add(new OpOperation(o, copyCacheFields));
@@ -103,6 +117,37 @@ public class OpBlock extends OpObject {
 		return OpBlockchainRules.getRawHash(getFullHash());
 	}
 	
+	public OpHash getOpHash() {
+		if(isImmutable) {
+			if(opHash == null) {
+				opHash = OpHash.fromHex(getFullHash());
+			}
+			return opHash;
+		}
+		return OpHash.fromHex(getFullHash());
+	}
+	
+	public String getSuperBlockHash() {
+		AtomicReference<String> sb = superblockHash;
+		return sb == null ? null : sb.get();
+	}
+	
+	@Override
+	@SuppressWarnings("unchecked")
+	public Map<String, Object> getMixedFieldsAndCacheMap() {
+		Map<String, Object> mp = super.getMixedFieldsAndCacheMap();
+		String sb = getSuperBlockHash();
+		if (sb != null) {
+			Map<String, Object> eval = (Map<String, Object>) mp.get(F_EVAL);
+			if (eval == null) {
+				eval = new TreeMap<String, Object>();
+				mp.put(F_EVAL, eval);
+			}
+			eval.put(F_SUPERBLOCK_HASH, sb);
+		}
+		return mp;
+	}
+	
 	public String getPrevRawHash() {
 		return OpBlockchainRules.getRawHash(getPrevFullHash());
 	}
@@ -137,7 +182,7 @@ public class OpBlock extends OpObject {
 	}
 	
 	
-	public static class OpBlockBeanAdapter implements JsonDeserializer<OpBlock>, JsonSerializer<OpBlock> {
+	public static class OpBlockBeanAdapter implements TypeAdapterFactory {
 
 		private boolean fullOutput;
 
@@ -146,28 +191,86 @@ public class OpBlock extends OpObject {
 		}
 
 		@Override
-		public OpBlock deserialize(JsonElement json, Type typeOfT, JsonDeserializationContext context)
-				throws JsonParseException {
-			JsonObject jsonObj = json.getAsJsonObject();
-			OpBlock op = new OpBlock();
-			JsonElement operations = jsonObj.remove(F_OPERATIONS);
-			op.fields = context.deserialize(jsonObj, TreeMap.class);
-			op.fields.remove(F_EVAL);
-			if (operations != null && operations.isJsonArray()) {
-				JsonArray ar = operations.getAsJsonArray();
-				for(int i = 0; i < ar.size(); i++) {
-					op.operations.add(context.deserialize(ar.get(i), OpOperation.class));
-				}
+		@SuppressWarnings("unchecked")
+		public <T> TypeAdapter<T> create(final Gson gson, TypeToken<T> type) {
+			if (type.getRawType() != OpBlock.class) {
+				return null;
 			}
-			return op;
-		}
+			return (TypeAdapter<T>) new TypeAdapter<OpBlock>() {
 
-		@Override
-		public JsonElement serialize(OpBlock src, Type typeOfSrc, JsonSerializationContext context) {
-			TreeMap<String, Object> tm = new TreeMap<>(
-					fullOutput ? src.getMixedFieldsAndCacheMap() : src.fields);
-			tm.put(F_OPERATIONS, src.operations);
-			return context.serialize(tm);
+				@Override
+				public OpBlock read(JsonReader in) throws IOException {
+					if (in.peek() == JsonToken.NULL) {
+						in.nextNull();
+						return null;
+					}
+					OpBlock op = new OpBlock();
+					TreeMap<String, Object> fields = new TreeMap<String, Object>();
+					in.beginObject();
+					while (in.hasNext()) {
+						String name = in.nextName();
+						if (F_OPERATIONS.equals(name)) {
+							if (in.peek() == JsonToken.BEGIN_ARRAY) {
+								TypeAdapter<OpOperation> opAdapter = gson.getAdapter(OpOperation.class);
+								in.beginArray();
+								while (in.hasNext()) {
+									op.operations.add(opAdapter.read(in));
+								}
+								in.endArray();
+							} else {
+								in.skipValue();
+							}
+						} else if (F_EVAL.equals(name)) {
+							in.skipValue();
+						} else {
+							fields.put(name, JsonFormatter.readValue(in));
+						}
+					}
+					in.endObject();
+					op.fields = fields;
+					return op;
+				}
+
+				@Override
+				public void write(JsonWriter out, OpBlock src) throws IOException {
+					if (src == null) {
+						out.nullValue();
+						return;
+					}
+					TreeMap<String, Object> tm = new TreeMap<>(
+							fullOutput ? src.getMixedFieldsAndCacheMap() : src.fields);
+					tm.put(F_OPERATIONS, src.operations);
+					if (fullOutput) {
+						JsonFormatter.writeMap(gson, out, tm);
+						return;
+					}
+					out.beginObject();
+					for (Map.Entry<String, Object> e : tm.entrySet()) {
+						out.name(e.getKey());
+						if (e.getKey().equals(F_OPERATIONS)) {
+							writeOperations(out, src.operations);
+						} else {
+							JsonFormatter.writeValue(gson, out, e.getValue());
+						}
+					}
+					out.endObject();
+				}
+
+				// reuse json of operations already serialized for db / hash
+				private void writeOperations(JsonWriter out, List<OpOperation> ops) throws IOException {
+					TypeAdapter<OpOperation> opAdapter = gson.getAdapter(OpOperation.class);
+					out.beginArray();
+					for (OpOperation o : ops) {
+						String js = JsonFormatter.getCachedJson(o);
+						if (js != null) {
+							out.jsonValue(js);
+						} else {
+							opAdapter.write(out, o);
+						}
+					}
+					out.endArray();
+				}
+			};
 		}
 
 	}
@@ -2,13 +2,17 @@ package org.openplacereviews.opendb.ops;
 
 import java.security.KeyPair;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.PriorityQueue;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
@@ -19,6 +23,7 @@ import org.openplacereviews.opendb.OUtils;
 import org.openplacereviews.opendb.ops.OpBlockchainRules.ErrorType;
 import org.openplacereviews.opendb.ops.OpPrivateObjectInstancesById.CacheObject;
 import org.openplacereviews.opendb.ops.de.CompoundKey;
+import org.openplacereviews.opendb.ops.de.OpHash;
 import org.openplacereviews.opendb.ops.de.OperationDeleteInfo;
 
 /**
@@ -73,6 +78,12 @@ public class OpBlockChain {
 	// 4. stores information about last object by name in this blockchain
 	private final Map<String, OpPrivateObjectInstancesById> objByName = new ConcurrentHashMap<>();
 	
+	// 5. (db superblocks only) keys of objects stored in this superblock by type, so lookup probes keys of db superblocks 
+	// in memory and fetches object only from superblock with the newest version.
+	// Saved and compacted superblocks get keys directly, superblocks loaded on start load keys of type on first access
+	private final Map<String, Set<CompoundKey>> dbObjectKeys = new ConcurrentHashMap<>();
+	// all types are present in dbObjectKeys
+	private volatile boolean dbObjectKeysComplete;
 	
 	
 	private OpBlockChain(boolean nullParent) {
@@ -259,6 +270,8 @@ public class OpBlockChain {
 		if (!valid) {
 			return null;
 		}
+		// operation hashes and signatures are verified in parallel, operations are applied in order
+		rules.prevalidateOps(this, block.getOperations());
 		locked = LOCKED_OP_IN_PROGRESS;
 		try {
 			for (OpOperation o : block.getOperations()) {
@@ -368,7 +381,7 @@ public class OpBlockChain {
 		List<String> deletedRefs = u.getOld();
 		for(int i = 0; i < deletedRefs.size(); i++) {
 			String delRef = deletedRefs.get(i);
-			String delHash = getHashFromAbsRef(delRef);
+			OpHash delHash = OpHash.fromHex(getHashFromAbsRef(delRef));
 			int delInd = getIndexFromAbsRef(delRef);
 			OperationDeleteInfo oinfo = operations.addDeletedObject(delHash, delInd, u);
 			for (OpObject delObj : oinfo.op.getNew()) {
@@ -424,7 +437,7 @@ public class OpBlockChain {
 		blocks.clear();
 		Set<String> operationsToDelete = new TreeSet<String>();
 		for(OpOperation o : operations.getQueueOperations()) {
-			OperationDeleteInfo odi = newParent.getOperationInfo(o.getRawHash());
+			OperationDeleteInfo odi = newParent.getOperationInfo(o.getOpHash());
 			if(odi != null && odi.create) {
 				operationsToDelete.add(o.getRawHash());
 			}
@@ -602,15 +615,29 @@ public class OpBlockChain {
 		if(nullObject) {
 			return null;
 		}
-		if(parent.getLastBlockId() < id) {
+		int firstId = blocks.getFirstBlockId();
+		if(firstId == -1 || id < firstId) {
 			return parent.getBlockHeadersById(id);
 		}
-		for(OpBlock o : blocks.getAllBlockHeaders()) {
-			if(o.getBlockId() == id) {
-				return o;
+		return blocks.getBlockHeaderById(id);
+	}
+	
+	/**
+	 * Block headers from given block id till the last block ordered by id
+	 */
+	public List<OpBlock> getBlockHeadersFromId(int fromId) {
+		List<OpBlock> lst = new ArrayList<>();
+		OpBlockChain c = this;
+		while(!c.nullObject) {
+			c.blocks.fetchBlockHeadersFromId(lst, fromId);
+			int firstId = c.blocks.getFirstBlockId();
+			if(firstId != -1 && firstId <= fromId) {
+				break;
 			}
+			c = c.parent;
 		}
-		return null;
+		Collections.reverse(lst);
+		return lst;
 	}
 	
 	public String getSuperBlockHash() {
@@ -626,15 +653,27 @@ public class OpBlockChain {
 		if(nullObject) {
 			return -1;
 		}
-		OpBlock n = blocks.getBlockHeaderByHash(block.getRawHash());
+		OpHash hash = block.getOpHash();
+		return hash == null ? -1 : getBlockDepth(hash);
+	}
+	
+	private int getBlockDepth(OpHash hash) {
+		if(nullObject) {
+			return -1;
+		}
+		OpBlock n = blocks.getBlockHeaderByHash(hash);
 		if(n != null) {
 			return n.getBlockId();
 		}
-		return parent.getBlockDepth(block);
+		return parent.getBlockDepth(hash);
 	}
 	
-	
 	public OpBlock getBlockHeaderByRawHash(String hash) {
+		OpHash h = OpHash.fromHex(hash);
+		return h == null ? null : getBlockHeaderByRawHash(h);
+	}
+	
+	private OpBlock getBlockHeaderByRawHash(OpHash hash) {
 		if(nullObject) {
 			return null;
 		}
@@ -646,6 +685,30 @@ public class OpBlockChain {
 	}
 	
 	public OpBlock getFullBlockByRawHash(String hash) {
+		OpHash h = OpHash.fromHex(hash);
+		return h == null ? null : getFullBlockByRawHash(h);
+	}
+	
+	/**
+	 * Evicts body of block (already persisted) from this superblock, it will be loaded by loader once gc collects it
+	 */
+	public boolean evictFullBlock(String hash, BlockLoader loader) {
+		OpHash h = OpHash.fromHex(hash);
+		if(nullObject || h == null) {
+			return false;
+		}
+		return blocks.evictFullBlock(h, loader);
+	}
+	
+	boolean clearEvictedBody(String hash) {
+		OpHash h = OpHash.fromHex(hash);
+		if(nullObject || h == null) {
+			return false;
+		}
+		return blocks.clearEvictedBody(h);
+	}
+	
+	private OpBlock getFullBlockByRawHash(OpHash hash) {
 		if(nullObject) {
 			return null;
 		}
@@ -657,6 +720,11 @@ public class OpBlockChain {
 	}
 	
 	public OpOperation getOperationByHash(String rawHash) {
+		OpHash h = OpHash.fromHex(rawHash);
+		return h == null ? null : getOperationByHash(h);
+	}
+	
+	private OpOperation getOperationByHash(OpHash rawHash) {
 		if(nullObject) {
 			return null;
 		}
@@ -673,31 +741,177 @@ public class OpBlockChain {
 	}
 	
 	public OpObject getObjectByName(String type, String key, String secondary) {
+		return getObjectByKey(type, new CompoundKey(key, secondary));
+	}
+	
+	public OpObject getObjectByName(String type, List<String> o) {
+		return getObjectByKey(type, new CompoundKey(0, o));
+	}
+	
+	private OpObject getObjectByKey(String type, CompoundKey k) {
 		if (isNullBlock()) {
 			return null;
 		}
+		if (dbAccess != null) {
+			OpBlockChain owner = getDbObjectOwner(type, k);
+			if (owner != null) {
+				return owner.getOrCreateObjectsByIdMap(type).getByKey(k);
+			}
+			// keys cover only continuous db part of the chain
+			OpBlockChain p = parent;
+			while (p.isDbAccessed()) {
+				p = p.parent;
+			}
+			return p.getObjectByKey(type, k);
+		}
 		OpPrivateObjectInstancesById ot = getOrCreateObjectsByIdMap(type);
 		if (ot != null) {
-			OpObject obj = ot.getObjectById(key, secondary);
+			OpObject obj = ot.getByKey(k);
 			if (obj != null) {
 				return obj;
 			}
 		}
-		return parent.getObjectByName(type, key, secondary);
+		return parent.getObjectByKey(type, k);
 	}
 	
-	public OpObject getObjectByName(String type, List<String> o) {
+	/**
+	 * Full json of object (with eval), object stored in db is returned without parsing
+	 */
+	public String getObjectFullJson(String type, String key, String secondary) {
+		return getObjectFullJson(type, new CompoundKey(key, secondary));
+	}
+	
+	private String getObjectFullJson(String type, CompoundKey k) {
 		if (isNullBlock()) {
 			return null;
 		}
+		if (dbAccess != null) {
+			OpBlockChain owner = getDbObjectOwner(type, k);
+			if (owner != null) {
+				return owner.getOrCreateObjectsByIdMap(type).getJsonByKey(k);
+			}
+			OpBlockChain p = parent;
+			while (p.isDbAccessed()) {
+				p = p.parent;
+			}
+			return p.getObjectFullJson(type, k);
+		}
 		OpPrivateObjectInstancesById ot = getOrCreateObjectsByIdMap(type);
 		if (ot != null) {
-			OpObject obj = ot.getObjectById(o);
+			OpObject obj = ot.getByKey(k);
 			if (obj != null) {
-				return obj;
+				return rules.getFormatter().fullObjectToJson(obj);
+			}
+		}
+		return parent.getObjectFullJson(type, k);
+	}
+	
+	public Map<CompoundKey, OpObject> getObjectsByNames(String type, Collection<CompoundKey> keys) {
+		Map<CompoundKey, OpObject> res = new HashMap<CompoundKey, OpObject>();
+		fetchObjectsByKeys(type, keys, res);
+		return res;
+	}
+	
+	private void fetchObjectsByKeys(String type, Collection<CompoundKey> keys, Map<CompoundKey, OpObject> res) {
+		if (isNullBlock() || keys.isEmpty()) {
+			return;
+		}
+		List<CompoundKey> notFound = new ArrayList<CompoundKey>();
+		OpBlockChain p = parent;
+		if (dbAccess != null) {
+			// group keys by superblock, so it is 1 query per superblock
+			Map<OpBlockChain, List<CompoundKey>> keysByOwner = new HashMap<OpBlockChain, List<CompoundKey>>();
+			for (CompoundKey k : keys) {
+				OpBlockChain owner = getDbObjectOwner(type, k);
+				if (owner == null) {
+					notFound.add(k);
+				} else {
+					List<CompoundKey> lst = keysByOwner.get(owner);
+					if (lst == null) {
+						lst = new ArrayList<CompoundKey>();
+						keysByOwner.put(owner, lst);
+					}
+					lst.add(k);
+				}
+			}
+			for (Entry<OpBlockChain, List<CompoundKey>> e : keysByOwner.entrySet()) {
+				res.putAll(e.getKey().getOrCreateObjectsByIdMap(type).getByKeys(e.getValue()));
+			}
+			while (p.isDbAccessed()) {
+				p = p.parent;
+			}
+		} else {
+			OpPrivateObjectInstancesById ot = getOrCreateObjectsByIdMap(type);
+			for (CompoundKey k : keys) {
+				OpObject obj = ot.getByKey(k);
+				if (obj != null) {
+					res.put(k, obj);
+				} else {
+					notFound.add(k);
+				}
+			}
+		}
+		p.fetchObjectsByKeys(type, notFound, res);
+	}
+	
+	// newest db superblock (this or db parents) which stores object
+	private OpBlockChain getDbObjectOwner(String type, CompoundKey k) {
+		OpBlockChain p = this;
+		while (p.isDbAccessed()) {
+			if (p.getDbObjectKeys(type).contains(k)) {
+				return p;
+			}
+			p = p.parent;
+		}
+		return null;
+	}
+	
+	private Set<CompoundKey> getDbObjectKeys(String type) {
+		Set<CompoundKey> keys = dbObjectKeys.get(type);
+		if (keys == null) {
+			if (dbObjectKeysComplete) {
+				return Collections.emptySet();
+			}
+			keys = new HashSet<CompoundKey>(dbAccess.getObjectKeys(type));
+			Set<CompoundKey> existing = dbObjectKeys.putIfAbsent(type, keys);
+			if (existing != null) {
+				keys = existing;
 			}
 		}
-		return parent.getObjectByName(type, o);
+		return keys;
+	}
+	
+	/**
+	 * Sets keys of all objects of saved db superblock (objects of the runtime superblock it was saved from)
+	 */
+	public void setDbObjectKeys(Map<String, ? extends Collection<CompoundKey>> keysByType) {
+		if (dbAccess == null) {
+			throw new UnsupportedOperationException();
+		}
+		for (Entry<String, ? extends Collection<CompoundKey>> e : keysByType.entrySet()) {
+			dbObjectKeys.put(e.getKey(), new HashSet<CompoundKey>(e.getValue()));
+		}
+		dbObjectKeysComplete = true;
+	}
+	
+	/**
+	 * Sets keys of db superblock compacted from given db superblock and its parent, keys of other superblocks are not changed.
+	 * Should be called before compacted superblocks are removed from db.
+	 */
+	public void setDbObjectKeysFromCompacted(OpBlockChain compacted) {
+		OpBlockChain compactedParent = compacted.parent;
+		if (dbAccess == null || !compacted.isDbAccessed() || !compactedParent.isDbAccessed()) {
+			throw new UnsupportedOperationException();
+		}
+		// types which were not accessed in both superblocks are loaded on first access
+		Set<String> types = new HashSet<String>(compacted.dbObjectKeys.keySet());
+		types.addAll(compactedParent.dbObjectKeys.keySet());
+		for (String type : types) {
+			Set<CompoundKey> keys = new HashSet<CompoundKey>(compacted.getDbObjectKeys(type));
+			keys.addAll(compactedParent.getDbObjectKeys(type));
+			dbObjectKeys.put(type, keys);
+		}
+		dbObjectKeysComplete = compacted.dbObjectKeysComplete && compactedParent.dbObjectKeysComplete;
 	}
 	
 	
@@ -729,6 +943,74 @@ public class OpBlockChain {
 		}
 	}
 	
+	/**
+	 * Objects ordered by key after given key (null for the first page). Every superblock returns at most limit
+	 * objects and they are merged so newer superblocks shadow older ones, so page memory doesn't depend on size of type.
+	 */
+	public void getObjectsPage(String type, CompoundKey after, ObjectsSearchRequest request) {
+		if (request.limit <= 0) {
+			throw new IllegalArgumentException("Limit is required to fetch page of objects");
+		}
+		PriorityQueue<PageCursor> queue = new PriorityQueue<PageCursor>();
+		int level = 0;
+		for (OpBlockChain c = this; !c.isNullBlock(); c = c.parent) {
+			OpPrivateObjectInstancesById o = c.getOrCreateObjectsByIdMap(type);
+			if (o != null) {
+				PageCursor cursor = new PageCursor(level++, 
+						o.getObjectsPage(after, request.limit, request.requestJson).entrySet().iterator());
+				if (cursor.next()) {
+					queue.add(cursor);
+				}
+			}
+		}
+		CompoundKey last = null;
+		while (!queue.isEmpty() && request.getResultSize() < request.limit) {
+			PageCursor cursor = queue.poll();
+			// same key from older superblock comes right after the newest one
+			if (!cursor.key.equals(last)) {
+				last = cursor.key;
+				if (cursor.value instanceof String) {
+					request.jsonResult.add((String) cursor.value);
+				} else if (request.requestJson) {
+					request.jsonResult.add(rules.getFormatter().fullObjectToJson(cursor.value));
+				} else {
+					request.result.add((OpObject) cursor.value);
+				}
+			}
+			if (cursor.next()) {
+				queue.add(cursor);
+			}
+		}
+	}
+	
+	private static class PageCursor implements Comparable<PageCursor> {
+		final int level;
+		final Iterator<Entry<CompoundKey, Object>> it;
+		CompoundKey key;
+		Object value;
+		
+		PageCursor(int level, Iterator<Entry<CompoundKey, Object>> it) {
+			this.level = level;
+			this.it = it;
+		}
+		
+		boolean next() {
+			if (!it.hasNext()) {
+				return false;
+			}
+			Entry<CompoundKey, Object> e = it.next();
+			key = e.getKey();
+			value = e.getValue();
+			return true;
+		}
+
+		@Override
+		public int compareTo(PageCursor o) {
+			int c = key.compareTo(o.key);
+			return c != 0 ? c : Integer.compare(level, o.level);
+		}
+	}
+	
 	private void fetchAllObjects(String type, ObjectsSearchRequest request) {
 		if(isNullBlock()) {
 			return;
@@ -737,7 +1019,7 @@ public class OpBlockChain {
 		if(o != null) {
 			o.fetchAllObjects(request);
 		}
-		if(request.limit == -1 || request.result.size() < request.limit) {
+		if(request.limit == -1 || request.getResultSize() < request.limit) {
 			parent.fetchAllObjects(type, request);
 		}
 	}
@@ -789,7 +1071,7 @@ public class OpBlockChain {
 	
 	
 	
-	private OperationDeleteInfo getOperationInfo(String hash) {
+	private OperationDeleteInfo getOperationInfo(OpHash hash) {
 		if(nullObject) {
 			return null;
 		}
@@ -807,12 +1089,43 @@ public class OpBlockChain {
 	}
 
 	
+	private Map<OpHash, OperationDeleteInfo> getOperationInfos(Collection<OpHash> hashes) {
+		Map<OpHash, OperationDeleteInfo> res = new HashMap<OpHash, OperationDeleteInfo>();
+		if(nullObject || hashes.isEmpty()) {
+			return res;
+		}
+		Map<OpHash, OperationDeleteInfo> cdis = operations.getOperationInfos(hashes);
+		List<OpHash> parentHashes = new ArrayList<OpHash>();
+		for(OpHash hash : hashes) {
+			OperationDeleteInfo cdi = cdis.get(hash);
+			if(cdi != null && cdi.create) {
+				res.put(hash, cdi);
+			} else {
+				parentHashes.add(hash);
+			}
+		}
+		Map<OpHash, OperationDeleteInfo> pdis = parent.getOperationInfos(parentHashes);
+		for(OpHash hash : parentHashes) {
+			OperationDeleteInfo cdi = cdis.get(hash);
+			OperationDeleteInfo pdi = pdis.get(hash);
+			if(cdi != null && pdi != null) {
+				res.put(hash, OpPrivateOperations.mergeDeleteInfo(cdi, pdi));
+			} else if(cdi != null) {
+				res.put(hash, cdi);
+			} else if(pdi != null) {
+				res.put(hash, pdi);
+			}
+		}
+		return res;
+	}
+
+	
 	private boolean validateAndPrepareOperation(OpOperation u, LocalValidationCtx ctx) {
 		ValidationTimer vld = new ValidationTimer().start();
 		if(OUtils.isEmpty(u.getRawHash())) {
 			return rules.error(u, ErrorType.OP_HASH_IS_NOT_CORRECT, u.getHash(), "");
 		}
-		OperationDeleteInfo oin = getOperationInfo(u.getRawHash());
+		OperationDeleteInfo oin = getOperationInfo(u.getOpHash());
 		if(oin != null) {
 			return rules.error(u, ErrorType.OP_HASH_IS_DUPLICATED, u.getHash(), ctx.blockHash);
 		}
@@ -849,6 +1162,23 @@ public class OpBlockChain {
 	private boolean prepareReferencedObjects(OpOperation u, LocalValidationCtx ctx) {
 		Map<String, List<String>> refs = u.getRef();
 		if (refs != null) {
+			// resolve all referenced objects of the same type in 1 batch
+			Map<String, List<CompoundKey>> keysByType = new HashMap<String, List<CompoundKey>>();
+			for (List<String> refObjName : refs.values()) {
+				if (refObjName.size() > 1) {
+					// type is necessary
+					List<CompoundKey> lst = keysByType.get(refObjName.get(0));
+					if (lst == null) {
+						lst = new ArrayList<CompoundKey>();
+						keysByType.put(refObjName.get(0), lst);
+					}
+					lst.add(new CompoundKey(1, refObjName));
+				}
+			}
+			Map<String, Map<CompoundKey, OpObject>> objsByType = new HashMap<String, Map<CompoundKey, OpObject>>();
+			for (Entry<String, List<CompoundKey>> e : keysByType.entrySet()) {
+				objsByType.put(e.getKey(), getObjectsByNames(e.getKey(), e.getValue()));
+			}
 			Iterator<Entry<String, List<String>>> it = refs.entrySet().iterator();
 			while (it.hasNext()) {
 				Entry<String, List<String>> e = it.next();
@@ -856,14 +1186,7 @@ public class OpBlockChain {
 				List<String> refObjName = e.getValue();
 				OpObject oi = null;
 				if (refObjName.size() > 1) {
-					// type is necessary
-					OpBlockChain blc = this;
-					String objType = refObjName.get(0);
-					List<String> refKey = refObjName.subList(1, refObjName.size());
-					while (blc != null && oi == null) {
-						oi = blc.getObjectByName(objType, refKey);
-						blc = blc.parent;
-					}
+					oi = objsByType.get(refObjName.get(0)).get(new CompoundKey(1, refObjName));
 				}
 				if (oi == null) {
 					return rules.error(u, ErrorType.REF_OBJ_NOT_FOUND, u.getHash(), refObjName);
@@ -879,12 +1202,26 @@ public class OpBlockChain {
 		List<String> deletedRefs = u.getOld();
 		ctx.deletedObjsCache.clear();
 		ctx.deletedOpsCache.clear();
+		OpHash[] delHashes = new OpHash[deletedRefs.size()];
 		for(int i = 0; i < deletedRefs.size(); i++) {
 			String delRef = deletedRefs.get(i);
-			String delHash = getHashFromAbsRef(delRef);
+			try {
+				delHashes[i] = OpHash.fromHex(getHashFromAbsRef(delRef));
+			} catch (IllegalArgumentException e) {
+				// not a hex hash
+				delHashes[i] = null;
+			}
+			if(delHashes[i] == null) {
+				return rules.error(u, ErrorType.DEL_OBJ_NOT_FOUND, u.getHash(), delRef);
+			}
+		}
+		Map<OpHash, OperationDeleteInfo> opInfos = getOperationInfos(new HashSet<OpHash>(Arrays.asList(delHashes)));
+		for(int i = 0; i < deletedRefs.size(); i++) {
+			String delRef = deletedRefs.get(i);
+			OpHash delHash = delHashes[i];
 			int delInd = getIndexFromAbsRef(delRef);
 			
-			OperationDeleteInfo opInfo = getOperationInfo(delHash);
+			OperationDeleteInfo opInfo = opInfos.get(delHash);
 			if(opInfo == null || opInfo.op.getNew().size() <= delInd) {
 				return rules.error(u, ErrorType.DEL_OBJ_NOT_FOUND, u.getHash(), delRef);
 			}
@@ -943,17 +1280,35 @@ public class OpBlockChain {
 		}
 	}
 	
+	public interface BlockLoader {
+		
+		OpBlock loadBlock(OpHash rawHash);
+	}
+	
 	public interface BlockDbAccessInterface {
 
 		OpObject getObjectById(String type, CompoundKey k);
+		
+		Map<CompoundKey, OpObject> getObjectsByIds(String type, Collection<CompoundKey> keys);
+		
+		Collection<CompoundKey> getObjectKeys(String type);
 
 		Map<CompoundKey, OpObject> getAllObjects(String type, ObjectsSearchRequest request);
+		
+		String getObjectJsonById(String type, CompoundKey k);
+		
+		Map<CompoundKey, String> getAllObjectsJson(String type, ObjectsSearchRequest request);
+		
+		// ordered by key, values are OpObject or full json string
+		Map<CompoundKey, Object> getObjectsPage(String type, CompoundKey after, int limit, boolean json);
 
-		OperationDeleteInfo getOperationInfo(String rawHash);
+		OperationDeleteInfo getOperationInfo(OpHash rawHash);
+		
+		Map<OpHash, OperationDeleteInfo> getOperationInfos(Collection<OpHash> rawHashes);
 
 		Deque<OpBlock> getAllBlocks(Collection<OpBlock> blockHeaders);
 
-		OpBlock getBlockByHash(String rawHash);
+		OpBlock getBlockByHash(OpHash rawHash);
 
 	}
 	
@@ -961,13 +1316,20 @@ public class OpBlockChain {
 		public int editVersion;
 		public int limit = -1;
 		public boolean requestCache = false;
+		// objects stored in db are returned as full json to jsonResult without parsing
+		public boolean requestJson = false;
 		
 		public List<OpObject> result = new ArrayList<OpObject>();
+		public List<String> jsonResult = new ArrayList<String>();
 		public int cacheVersion = -1;
 		public Object cacheObject;
 		
-		Object internalMapToFilterDuplicates; 
+		Set<CompoundKey> internalKeysToFilterDuplicates; 
 		OpPrivateObjectInstancesById objToSetCache;
+		
+		public int getResultSize() {
+			return result.size() + jsonResult.size();
+		}
 	}
 
 
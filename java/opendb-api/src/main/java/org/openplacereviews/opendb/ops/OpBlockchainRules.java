@@ -5,13 +5,14 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.security.KeyPair;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
-import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.stream.IntStream;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -19,6 +20,7 @@ import org.openplacereviews.opendb.FailedVerificationException;
 import org.openplacereviews.opendb.OUtils;
 import org.openplacereviews.opendb.OpenDBServer;
 import org.openplacereviews.opendb.SecUtils;
+import org.openplacereviews.opendb.ops.de.OpHash;
 import org.openplacereviews.opendb.util.JsonFormatter;
 import org.openplacereviews.opendb.util.OpExprEvaluator;
 import org.openplacereviews.opendb.util.OpExprEvaluator.EvaluationContext;
@@ -90,9 +92,17 @@ public class OpBlockchainRules {
 	public static final char USER_LOGIN_CHAR = ':';
 
 	private static final String WILDCARD_RULE = "*";
+	private static final int PARALLEL_MERKLE_LEVEL_SIZE = 64;
+	// cache of stateless checks of immutable operation
+	private static final String F_OP_VERIFICATION = "verification";
+	// cache of 'if' expressions dependencies of sys.validate rule
+	private static final String F_RULE_GUARDS = "ruleGuards";
+	// cache of public key decoded from login / signup object
+	private static final String F_DECODED_KEY_PAIR = "decodedKeyPair";
 	
 	private JsonFormatter formatter;
 	private ValidationListener logValidation;
+	private volatile RolesClosure lastRolesClosure;
 	
 	
 	public OpBlockchainRules(JsonFormatter formatter, ValidationListener logValidation) {
@@ -168,49 +178,71 @@ public class OpBlockchainRules {
 		return nickname + USER_LOGIN_CHAR + site;
 	}
 
-	public String calculateMerkleTreeHash(OpBlock op) {
-		List<byte[]> hashes = new ArrayList<byte[]>();
-		for (OpOperation o : op.getOperations()) {
-			byte[] hashBytes = SecUtils.getHashBytes(o.getHash());
-			hashes.add(hashBytes);
+	public String calculateMerkleTreeHash(final OpBlock op) {
+		if (op.isImmutable() && op.merkleTreeHash != null) {
+			return op.merkleTreeHash;
 		}
-		return calculateMerkleTreeInPlaceHash(SecUtils.HASH_SHA256, hashes);
+		final List<OpOperation> ops = op.getOperations();
+		final byte[][] hashes = new byte[ops.size()][];
+		merkleLevelRange(hashes.length).forEach(i -> hashes[i] = getHashBytes(ops.get(i)));
+		String res = calculateMerkleTreeInPlaceHash(SecUtils.HASH_SHA256, Arrays.asList(hashes));
+		if (op.isImmutable()) {
+			op.merkleTreeHash = res;
+		}
+		return res;
+	}
+
+	private static byte[] getHashBytes(OpOperation op) {
+		OpHash h = op.getOpHash();
+		return h == null ? new byte[0] : h.getBytes();
 	}
 
-	public String calculateSigMerkleTreeHash(OpBlock op) {
-		List<byte[]> hashes = new ArrayList<byte[]>();
-		for (OpOperation o : op.getOperations()) {
-			List<String> sigs = o.getSignatureList();
+	public String calculateSigMerkleTreeHash(final OpBlock op) {
+		if (op.isImmutable() && op.sigMerkleTreeHash != null) {
+			return op.sigMerkleTreeHash;
+		}
+		final List<OpOperation> ops = op.getOperations();
+		final byte[][] hashes = new byte[ops.size()][];
+		merkleLevelRange(hashes.length).forEach(i -> {
 			byte[] bts = null;
-			for (String s : sigs) {
+			for (String s : ops.get(i).getSignatureList()) {
 				bts = SecUtils.mergeTwoArrays(bts, SecUtils.decodeSignature(s));
 			}
-			hashes.add(bts);
+			hashes[i] = bts;
+		});
+		String res = calculateMerkleTreeInPlaceHash(SecUtils.HASH_SHA256, Arrays.asList(hashes));
+		if (op.isImmutable()) {
+			op.sigMerkleTreeHash = res;
 		}
-		return calculateMerkleTreeInPlaceHash(SecUtils.HASH_SHA256, hashes);
+		return res;
 	}
 
-	private String calculateMerkleTreeInPlaceHash(String algo, List<byte[]> hashes) {
+	private String calculateMerkleTreeInPlaceHash(final String algo, final List<byte[]> hashes) {
 		if (hashes.size() == 0) {
 			return "";
 		}
 		if (hashes.size() <= 1) {
 			return SecUtils.formatHashWithAlgo(algo, hashes.get(0));
 		}
-		List<byte[]> nextLevel = new ArrayList<byte[]>();
-		for (int i = 0; i < hashes.size(); i += 2) {
-			byte[] hsh = SecUtils.calculateHash(algo, hashes.get(i),
+		final byte[][] nextLevel = new byte[(hashes.size() + 1) / 2][];
+		merkleLevelRange(nextLevel.length).forEach(j -> {
+			int i = 2 * j;
+			nextLevel[j] = SecUtils.calculateHash(algo, hashes.get(i),
 					i + 1 < hashes.size() ? hashes.get(i + 1) : hashes.get(i));
-			nextLevel.add(hsh);
-		}
-		return calculateMerkleTreeInPlaceHash(algo, nextLevel);
+		});
+		return calculateMerkleTreeInPlaceHash(algo, Arrays.asList(nextLevel));
+	}
+	
+	private static IntStream merkleLevelRange(int size) {
+		IntStream range = IntStream.range(0, size);
+		// large levels are calculated on fork-join pool
+		return size >= PARALLEL_MERKLE_LEVEL_SIZE ? range.parallel() : range;
 	}
 
 	// hash and signature operations
 	public String calculateOperationHash(OpOperation ob, boolean set) {
 		String hash = JSON_MSG_TYPE + ":"
-				+ SecUtils.calculateHashWithAlgo(SecUtils.HASH_SHA256, null, 
-						formatter.opToJsonNoHash(ob));
+				+ SecUtils.calculateHashWithAlgo(SecUtils.HASH_SHA256, formatter.opHashInput(ob));
 		if (set) {
 			ob.putStringValue(OpOperation.F_HASH, hash);
 		}
@@ -275,10 +307,18 @@ public class OpBlockchainRules {
 			}
 		}
 		Map<String, List<OpObject>> validationRules = getValidationRules(blockchain);
+		// json context of operation is built once and shared by all rules (expressions don't modify it)
+		EvaluationContext ctx = null;
 		List<OpObject> toValidate = validationRules.get(o.getType());
 		if(toValidate != null) {
 			for(OpObject rule : toValidate) {
-				if(!validateRule(blockchain, rule, o, deletedObjsCache, refObjsCache, timer)) {
+				if(canSkipRule(rule, o, deletedObjsCache, refObjsCache)) {
+					continue;
+				}
+				if(ctx == null) {
+					ctx = createEvaluationContext(blockchain, o, deletedObjsCache, refObjsCache);
+				}
+				if(!validateRule(rule, o, ctx)) {
 					return false;
 				}
 			}
@@ -286,7 +326,13 @@ public class OpBlockchainRules {
 		toValidate = validationRules.get(WILDCARD_RULE);
 		if(toValidate != null) {
 			for(OpObject rule : toValidate) {
-				if(!validateRule(blockchain, rule, o, deletedObjsCache, refObjsCache, timer)) {
+				if(canSkipRule(rule, o, deletedObjsCache, refObjsCache)) {
+					continue;
+				}
+				if(ctx == null) {
+					ctx = createEvaluationContext(blockchain, o, deletedObjsCache, refObjsCache);
+				}
+				if(!validateRule(rule, o, ctx)) {
 					return false;
 				}
 			}
@@ -294,8 +340,67 @@ public class OpBlockchainRules {
 		return true;
 	}
 
-	private boolean validateRule(OpBlockChain blockchain, OpObject rule, OpOperation o, List<OpObject> deletedObjsCache,
-			Map<String, OpObject> refObjsCache, ValidationTimer timer) {
+	/**
+	 * Rule could be skipped without evaluation when its 'if' guards are decided only by fields absent in operation:
+	 * such guard evaluates the same way as on empty context.
+	 */
+	private boolean canSkipRule(OpObject rule, OpOperation o, List<OpObject> deletedObjsCache, 
+			Map<String, OpObject> refObjsCache) {
+		for (RuleGuard guard : getRuleGuards(rule)) {
+			if (guard.fields == null || guard.emptyResult == null) {
+				return false;
+			}
+			for (String field : guard.fields) {
+				if (isOpFieldPresent(field, o, deletedObjsCache, refObjsCache)) {
+					return false;
+				}
+			}
+			if (!guard.emptyResult) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	private boolean isOpFieldPresent(String field, OpOperation o, List<OpObject> deletedObjsCache, 
+			Map<String, OpObject> refObjsCache) {
+		if (OpOperation.F_TYPE.equals(field)) {
+			return true;
+		} else if (OpOperation.F_NEW.equals(field)) {
+			return o.hasNew();
+		} else if (OpOperation.F_REF.equals(field)) {
+			return !refObjsCache.isEmpty();
+		} else if (OpOperation.F_OLD.equals(field)) {
+			return !deletedObjsCache.isEmpty();
+		}
+		return o.getRawOtherFields().containsKey(field);
+	}
+	
+	@SuppressWarnings("unchecked")
+	private List<RuleGuard> getRuleGuards(OpObject rule) {
+		List<RuleGuard> guards = (List<RuleGuard>) rule.getCacheObject(F_RULE_GUARDS);
+		if (guards == null) {
+			guards = new ArrayList<RuleGuard>();
+			for (OpExprEvaluator s : getValidateExpresions(F_IF, rule)) {
+				RuleGuard guard = new RuleGuard();
+				guard.fields = s.getRootFields();
+				if (guard.fields != null) {
+					try {
+						guard.emptyResult = s.evaluateBoolean(new EvaluationContext(null, new JsonObject(), 
+								new JsonArray(), new JsonObject()));
+					} catch (RuntimeException e) {
+						// guard fails on empty context, so it needs to be evaluated
+					}
+				}
+				guards.add(guard);
+			}
+			rule.putCacheObject(F_RULE_GUARDS, guards);
+		}
+		return guards;
+	}
+
+	private EvaluationContext createEvaluationContext(OpBlockChain blockchain, OpOperation o,
+			List<OpObject> deletedObjsCache, Map<String, OpObject> refObjsCache) {
 		JsonArray deletedArray = (JsonArray) formatter.toJsonElement(deletedObjsCache);
 		for(int i = 0; i < deletedArray.size(); i++) {
 			((JsonObject)deletedArray.get(i)).addProperty(OpOperation.F_TYPE, deletedObjsCache.get(i).getParentType());
@@ -304,8 +409,11 @@ public class OpBlockchainRules {
 		for(String key : refObjsCache.keySet()) {
 			((JsonObject) refsMap.get(key)).addProperty(OpOperation.F_TYPE, refObjsCache.get(key).getParentType());
 		}
-		EvaluationContext ctx = new EvaluationContext(blockchain, formatter.toJsonElement(o).getAsJsonObject(),
+		return new EvaluationContext(blockchain, formatter.toJsonElement(o).getAsJsonObject(),
 				deletedArray, refsMap);
+	}
+
+	private boolean validateRule(OpObject rule, OpOperation o, EvaluationContext ctx) {
 		List<OpExprEvaluator> vld = getValidateExpresions(F_VALIDATE, rule);
 		List<OpExprEvaluator> ifs = getValidateExpresions(F_IF, rule);
 		for(OpExprEvaluator s : ifs) {
@@ -336,59 +444,22 @@ public class OpBlockchainRules {
 	}
 	
 	
-	@SuppressWarnings("unchecked")
 	public Map<String, Set<String>> getRoles(OpBlockChain blockchain) {
+		return getRolesClosure(blockchain).getRolesMap();
+	}
+	
+	public RolesClosure getRolesClosure(OpBlockChain blockchain) {
 		OpBlockChain.ObjectsSearchRequest req = new OpBlockChain.ObjectsSearchRequest();
 		req.requestCache = true;
 		blockchain.getObjects(OP_ROLE, req);
-		Map<String, Set<String>> rolesMap = (Map<String,  Set<String>>) req.cacheObject;
-		if(rolesMap == null) {
-			rolesMap = new TreeMap<String, Set<String>>();
-			for(OpObject vld : req.result) {
-				String roleId = vld.getId().get(0);
-				rolesMap.put(roleId, new TreeSet<String>());
-			}
-			for(OpObject vld : req.result) {
-				String roleId = vld.getId().get(0);
-				rolesMap.get(roleId).add(roleId);
-				for(String superRole : vld.getStringList(F_SUPER_ROLES)) {
-					Set<String> sr = rolesMap.get(superRole);
-					if(sr != null) {
-						sr.add(roleId);
-					}
-				}
-			}
-			recalculateFullRolesMap(rolesMap);
-			blockchain.setCacheAfterSearch(req, rolesMap);
-		}
-		return rolesMap;
-	}
-
-
-	private void recalculateFullRolesMap(Map<String, Set<String>> rolesMap) {
-		boolean changed = true;
-		// number of iteration depends on the roles depth and in practice it shouldn't be more than 5-6 iterations
-		while(changed) {
-			changed = false;
-			for(String superRole : rolesMap.keySet()) {
-				Set<String> underlyingSuperRoles = rolesMap.get(superRole);
-				
-				Iterator<String> it = underlyingSuperRoles.iterator();
-				while(it.hasNext()) {
-					String role = it.next();
-					if(!role.equals(superRole)) {
-						// combine all underlying roles
-						Set<String> underlyingRoles = rolesMap.get(role);
-						boolean added = underlyingSuperRoles.addAll(underlyingRoles);
-						if(added) {
-							changed = true;
-							it = underlyingSuperRoles.iterator();
-						}
-					}
-				}
-			}
-			
+		RolesClosure roles = (RolesClosure) req.cacheObject;
+		if(roles == null) {
+			// usually roles are only added, so closure is extended from the last calculated one
+			roles = RolesClosure.build(req.result, lastRolesClosure);
+			lastRolesClosure = roles;
+			blockchain.setCacheAfterSearch(req, roles);
 		}
+		return roles;
 	}
 
 	@SuppressWarnings("unchecked")
@@ -433,16 +504,19 @@ public class OpBlockchainRules {
 		if (block.getOperations().size() == 0) {
 			return error(block, ErrorType.BLOCK_EMPTY, blockHash);
 		}
-		if (!OUtils.equals(calculateMerkleTreeHash(block), block.getStringValue(OpBlock.F_MERKLE_TREE_HASH))) {
-			return error(block, ErrorType.BLOCK_MERKLE_TREE_FAILED, blockHash, calculateMerkleTreeHash(block),
+		String merkleTreeHash = calculateMerkleTreeHash(block);
+		if (!OUtils.equals(merkleTreeHash, block.getStringValue(OpBlock.F_MERKLE_TREE_HASH))) {
+			return error(block, ErrorType.BLOCK_MERKLE_TREE_FAILED, blockHash, merkleTreeHash,
 					block.getStringValue(OpBlock.F_MERKLE_TREE_HASH));
 		}
-		if (!OUtils.equals(calculateSigMerkleTreeHash(block), block.getStringValue(OpBlock.F_SIG_MERKLE_TREE_HASH))) {
-			return error(block, ErrorType.BLOCK_SIG_MERKLE_TREE_FAILED, blockHash, calculateSigMerkleTreeHash(block),
+		String sigMerkleTreeHash = calculateSigMerkleTreeHash(block);
+		if (!OUtils.equals(sigMerkleTreeHash, block.getStringValue(OpBlock.F_SIG_MERKLE_TREE_HASH))) {
+			return error(block, ErrorType.BLOCK_SIG_MERKLE_TREE_FAILED, blockHash, sigMerkleTreeHash,
 					block.getStringValue(OpBlock.F_SIG_MERKLE_TREE_HASH));
 		}
-		if (!OUtils.equals(calculateHash(block), block.getFullHash())) {
-			return error(block, ErrorType.BLOCK_HASH_FAILED, block.getFullHash(), calculateHash(block));
+		String calculatedHash = calculateHash(block);
+		if (!OUtils.equals(calculatedHash, block.getFullHash())) {
+			return error(block, ErrorType.BLOCK_HASH_FAILED, block.getFullHash(), calculatedHash);
 		}
 		
 		if(!validateSignature) {
@@ -472,6 +546,74 @@ public class OpBlockchainRules {
 		return true;
 	}
 	
+	/**
+	 * Runs checks which don't depend on blockchain state or could be rechecked cheaply: operation hash, size,
+	 * signatures by current key objects, parsing of validate expressions. Results are cached on immutable operation,
+	 * so it could be called concurrently before operation is added under lock.
+	 */
+	public void prevalidateOp(OpBlockChain ctx, OpOperation u) {
+		if (!u.isImmutable()) {
+			return;
+		}
+		OpVerification v = getOpVerification(u);
+		if (!v.hashValid || v.size > OpBlockchainRules.MAX_OP_SIZE_MB) {
+			return;
+		}
+		List<String> sigs = u.getSignatureList();
+		List<String> signedBy = u.getSignedBy();
+		if (signedBy.size() == sigs.size()) {
+			byte[] txHash = SecUtils.getHashBytes(u.getHash());
+			for (int i = 0; i < sigs.size(); i++) {
+				try {
+					OpObject keyObj = getSignatureKeyObj(ctx, u, signedBy.get(i));
+					if (SecUtils.validateSignature(getKeyPairFromObj(keyObj, null), txHash, sigs.get(i))) {
+						v.keyObjs.set(i, keyObj);
+					}
+				} catch (Exception e) {
+					// error is reported by validateOp
+				}
+			}
+		}
+		if (OpBlockchainRules.OP_VALIDATE.equals(u.getType())) {
+			for (OpObject obj : u.getNew()) {
+				try {
+					getValidateExpresions(F_IF, obj);
+					getValidateExpresions(F_VALIDATE, obj);
+				} catch (RuntimeException e) {
+					// error is reported by validateOp
+				}
+			}
+		}
+	}
+	
+	public void prevalidateOps(final OpBlockChain ctx, Collection<OpOperation> ops) {
+		ops.parallelStream().forEach(op -> prevalidateOp(ctx, op));
+	}
+	
+	private OpVerification getOpVerification(OpOperation u) {
+		OpVerification v = (OpVerification) u.getCacheObject(F_OP_VERIFICATION);
+		if (v == null || v.op != u) {
+			v = new OpVerification(u, OUtils.equals(calculateOperationHash(u, false), u.getHash()),
+					formatter.opToJson(u).length());
+			u.putCacheObject(F_OP_VERIFICATION, v);
+		}
+		return v;
+	}
+	
+	private OpObject getSignatureKeyObj(OpBlockChain ctx, OpOperation ob, String signedByName) {
+		// 1st signup could be signed by itself
+		if (OpBlockchainRules.OP_SIGNUP.equals(ob.getType()) && ob.getNew().size() == 1) {
+			String signupName = ob.getNew().get(0).getId().get(0);
+			if (signedByName.equals(signupName)) {
+				OpObject obj = ctx.getObjectByName(OpBlockchainRules.OP_SIGNUP, signupName);
+				if (obj == null || obj.getStringValue(F_AUTH_METHOD).equals(METHOD_OAUTH)) {
+					return ob.getNew().get(0);
+				}
+			}
+		}
+		return getLoginKeyObj(ctx, signedByName);
+	}
+	
 	public boolean validateSignatures(OpBlockChain ctx, OpOperation ob) {
 		List<String> sigs = ob.getSignatureList();
 		List<String> signedBy = ob.getSignedBy();
@@ -479,28 +621,23 @@ public class OpBlockchainRules {
 			return error(ob, ErrorType.OP_SIGNATURE_FAILED, ob.getHash(), sigs);
 		}
 		byte[] txHash = SecUtils.getHashBytes(ob.getHash());
-		boolean signByItself = false;
-		String signupName = "";
-		if(OpBlockchainRules.OP_SIGNUP.equals(ob.getType()) && ob.getNew().size() == 1) {
-			signupName =  ob.getNew().get(0).getId().get(0);
-			OpObject obj = ctx.getObjectByName(OpBlockchainRules.OP_SIGNUP, signupName);
-			signByItself = obj == null || obj.getStringValue(F_AUTH_METHOD).equals(METHOD_OAUTH);
-		}
-		// 1st signup could be signed by itself
+		OpVerification v = ob.isImmutable() ? getOpVerification(ob) : null;
 		for (int i = 0; i < sigs.size(); i++) {
 			Exception cause = null;
 			boolean validate = false;
 			try {
 				String sig = sigs.get(i);
-				String signedByName = signedBy.get(i);
-				OpObject keyObj;
-				if(signByItself && signedByName.equals(signupName)) {
-					keyObj = ob.getNew().get(0);
+				OpObject keyObj = getSignatureKeyObj(ctx, ob, signedBy.get(i));
+				// key objects are immutable, so signature verified by the same object is still valid
+				if (v != null && keyObj != null && v.keyObjs.get(i) == keyObj) {
+					validate = true;
 				} else {
-					keyObj = getLoginKeyObj(ctx, signedByName);
+					KeyPair kp = getKeyPairFromObj(keyObj, null);
+					validate = SecUtils.validateSignature(kp, txHash, sig);
+					if (validate && v != null) {
+						v.keyObjs.set(i, keyObj);
+					}
 				}
-				KeyPair kp = getKeyPairFromObj(keyObj, null);
-				validate = SecUtils.validateSignature(kp, txHash, sig);
 			} catch (Exception e) {
 				cause = e;
 			}
@@ -514,11 +651,20 @@ public class OpBlockchainRules {
 	
 	public boolean validateOp(OpBlockChain opBlockChain, OpOperation u, List<OpObject> deletedObjsCache,
 			Map<String, OpObject> refObjsCache, ValidationTimer vld) {
-		if(!OUtils.equals(calculateOperationHash(u, false), u.getHash())) {
+		boolean hashValid;
+		int sz;
+		if (u.isImmutable()) {
+			OpVerification v = getOpVerification(u);
+			hashValid = v.hashValid;
+			sz = v.size;
+		} else {
+			hashValid = OUtils.equals(calculateOperationHash(u, false), u.getHash());
+			sz = formatter.opToJson(u).length();
+		}
+		if(!hashValid) {
 			return error(u, ErrorType.OP_HASH_IS_NOT_CORRECT, calculateOperationHash(u, false), u.getHash());
 		}
 		
-		int sz = formatter.opToJson(u).length();
 		if (sz > OpBlockchainRules.MAX_OP_SIZE_MB) {
 			return error(u, ErrorType.OP_SIZE_IS_EXCEEDED, u.getHash(), sz, OpBlockchainRules.MAX_OP_SIZE_MB);
 		}
@@ -576,6 +722,15 @@ public class OpBlockchainRules {
 		if(op == null) {
 			return null;
 		}
+		if (privatekey == null) {
+			// login objects are immutable and replaced on change, so decoded key lives as long as the object
+			KeyPair kp = (KeyPair) op.getCacheObject(F_DECODED_KEY_PAIR);
+			if (kp == null) {
+				kp = SecUtils.getKeyPair(op.getStringValue(F_ALGO), null, op.getStringValue(F_PUBKEY));
+				op.putCacheObject(F_DECODED_KEY_PAIR, kp);
+			}
+			return kp;
+		}
 		String algo = op.getStringValue(F_ALGO);
 		KeyPair kp = SecUtils.getKeyPair(algo, privatekey, op.getStringValue(F_PUBKEY));
 		if (privatekey == null || SecUtils.validateKeyPair(algo, kp.getPrivate(), kp.getPublic())) {
@@ -615,6 +770,9 @@ public class OpBlockchainRules {
 	}
 	
 	public String calculateHash(OpBlock block) {
+		if (block.isImmutable() && block.calculatedHash != null) {
+			return block.calculatedHash;
+		}
 		ByteArrayOutputStream bs = new ByteArrayOutputStream();
 		DataOutputStream dous = new DataOutputStream(bs);
 		try {
@@ -630,7 +788,11 @@ public class OpBlockchainRules {
 			}
 			dous.write(block.getStringValue(OpBlock.F_DETAILS).getBytes("UTF-8"));
 			dous.flush();
-			return SecUtils.calculateHashWithAlgo(SecUtils.HASH_SHA256, bs.toByteArray());
+			String res = SecUtils.calculateHashWithAlgo(SecUtils.HASH_SHA256, bs.toByteArray());
+			if (block.isImmutable()) {
+				block.calculatedHash = res;
+			}
+			return res;
 		} catch (IOException e) {
 			throw new IllegalArgumentException(e);
 		}
@@ -653,6 +815,28 @@ public class OpBlockchainRules {
 		throw new IllegalArgumentException(e.getErrorFormat(args), cause);
 	}
 	
+	private static class RuleGuard {
+		// top level fields of operation read by guard, null if guard depends on blockchain or whole operation
+		Set<String> fields;
+		// guard value when all fields are absent, null if evaluation fails
+		Boolean emptyResult;
+	}
+	
+	private static class OpVerification {
+		final OpOperation op;
+		final boolean hashValid;
+		final int size;
+		// key objects which verified signatures by index
+		final AtomicReferenceArray<OpObject> keyObjs;
+		
+		OpVerification(OpOperation op, boolean hashValid, int size) {
+			this.op = op;
+			this.hashValid = hashValid;
+			this.size = size;
+			this.keyObjs = new AtomicReferenceArray<OpObject>(op.getSignatureList().size());
+		}
+	}
+	
 	public static enum ErrorType {
 		BLOCK_PREV_HASH("Previous block hash is not equal '%s' != '%s': block '%s'"),
 		BLOCK_PREV_ID("Previous block id is not equal '%d' != '%d': block '%s'"),
@@ -1,6 +1,6 @@
 package org.openplacereviews.opendb.ops;
 
-import java.lang.reflect.Type;
+import java.io.IOException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -15,13 +15,15 @@ import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
 
 import org.openplacereviews.opendb.OUtils;
+import org.openplacereviews.opendb.util.JsonFormatter;
 
-import com.google.gson.JsonDeserializationContext;
-import com.google.gson.JsonDeserializer;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonParseException;
-import com.google.gson.JsonSerializationContext;
-import com.google.gson.JsonSerializer;
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 
 public class OpObject {
 	
@@ -44,7 +46,8 @@ public class OpObject {
 	}
 	
 	protected Map<String, Object> fields = new TreeMap<>();
-	protected transient Map<String, Object> cacheFields;
+	// immutable objects are shared between threads, map is created once (double checked)
+	protected transient volatile Map<String, Object> cacheFields;
 	protected boolean isImmutable;
 	
 	protected transient String parentType;
@@ -58,9 +61,9 @@ public class OpObject {
 	
 	public OpObject(OpObject cp, boolean copyCacheFields) {
 		this.fields.putAll(cp.fields);
-		if(copyCacheFields && cp.cacheFields != null) {
-			this.cacheFields = new ConcurrentHashMap<String, Object>();
-			this.cacheFields.putAll(cp.cacheFields);
+		Map<String, Object> cf = cp.cacheFields;
+		if(copyCacheFields && cf != null) {
+			this.cacheFields = new ConcurrentHashMap<String, Object>(cf);
 		}
 	}
 	
@@ -99,18 +102,26 @@ public class OpObject {
 	}
 	
 	public Object getCacheObject(String f) {
-		if(cacheFields == null) {
+		Map<String, Object> cf = cacheFields;
+		if(cf == null) {
 			return null;
 		}
-		return cacheFields.get(f);
+		return cf.get(f);
 	}
 	
 	public void putCacheObject(String f, Object o) {
 		if (isImmutable()) {
-			if (cacheFields == null) {
-				cacheFields = new ConcurrentHashMap<String, Object>();
+			Map<String, Object> cf = cacheFields;
+			if (cf == null) {
+				synchronized (this) {
+					cf = cacheFields;
+					if (cf == null) {
+						cf = new ConcurrentHashMap<String, Object>();
+						cacheFields = cf;
+					}
+				}
 			}
-			cacheFields.put(f, o);
+			cf.put(f, o);
 		}
 	}
 	
@@ -266,7 +277,8 @@ public class OpObject {
 	
 	public Map<String, Object> getMixedFieldsAndCacheMap() {
 		TreeMap<String, Object> mp = new TreeMap<>(fields);
-		if(cacheFields != null || parentType != null || parentHash != null) {
+		Map<String, Object> cf = cacheFields;
+		if(cf != null || parentType != null || parentHash != null) {
 			TreeMap<String, Object> eval = new TreeMap<String, Object>();
 			
 			if(parentType != null) {
@@ -275,8 +287,8 @@ public class OpObject {
 			if(parentHash != null) {
 				eval.put(F_PARENT_HASH, parentHash);
 			}
-			if (cacheFields != null) {
-				Iterator<Entry<String, Object>> it = cacheFields.entrySet().iterator();
+			if (cf != null) {
+				Iterator<Entry<String, Object>> it = cf.entrySet().iterator();
 				while (it.hasNext()) {
 					Entry<String, Object> e = it.next();
 					Object v = e.getValue();
@@ -322,8 +334,7 @@ public class OpObject {
 		return true;
 	}
 
-	public static class OpObjectAdapter implements JsonDeserializer<OpObject>,
-			JsonSerializer<OpObject> {
+	public static class OpObjectAdapter implements TypeAdapterFactory {
 		
 		private boolean fullOutput;
 
@@ -332,20 +343,36 @@ public class OpObject {
 		}
 
 		@Override
-		public OpObject deserialize(JsonElement json, Type typeOfT, JsonDeserializationContext context)
-				throws JsonParseException {
-			OpObject bn = new OpObject();
-			bn.fields = context.deserialize(json, TreeMap.class);
-			// remove cache
-			bn.fields.remove(F_EVAL);
-			return bn;
-		}
+		@SuppressWarnings("unchecked")
+		public <T> TypeAdapter<T> create(final Gson gson, TypeToken<T> type) {
+			if (type.getRawType() != OpObject.class) {
+				return null;
+			}
+			return (TypeAdapter<T>) new TypeAdapter<OpObject>() {
 
-		@Override
-		public JsonElement serialize(OpObject src, Type typeOfSrc, JsonSerializationContext context) {
-			return context.serialize(fullOutput ? src.getMixedFieldsAndCacheMap() : src.fields);
-		}
+				@Override
+				public OpObject read(JsonReader in) throws IOException {
+					if (in.peek() == JsonToken.NULL) {
+						in.nextNull();
+						return null;
+					}
+					OpObject bn = new OpObject();
+					bn.fields = JsonFormatter.readMap(in);
+					// remove cache
+					bn.fields.remove(F_EVAL);
+					return bn;
+				}
 
+				@Override
+				public void write(JsonWriter out, OpObject src) throws IOException {
+					if (src == null) {
+						out.nullValue();
+						return;
+					}
+					JsonFormatter.writeMap(gson, out, fullOutput ? src.getMixedFieldsAndCacheMap() : src.fields);
+				}
+			};
+		}
 
 	}
 
@@ -1,19 +1,22 @@
 package org.openplacereviews.opendb.ops;
 
-import java.lang.reflect.Type;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 
-import com.google.gson.JsonArray;
-import com.google.gson.JsonDeserializationContext;
-import com.google.gson.JsonDeserializer;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParseException;
-import com.google.gson.JsonSerializationContext;
-import com.google.gson.JsonSerializer;
+import org.openplacereviews.opendb.ops.de.OpHash;
+import org.openplacereviews.opendb.util.JsonFormatter;
+
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 
 public class OpOperation extends OpObject {
 	
@@ -32,6 +35,9 @@ public class OpOperation extends OpObject {
 	
 	private List<OpObject> newObjects = new LinkedList<OpObject>();
 	protected String type;
+	// cache for immutable
+	private String rawHash;
+	private OpHash opHash;
 	
 	public OpOperation() {
 	}
@@ -89,14 +95,30 @@ public class OpOperation extends OpObject {
 	}
 	
 	public String getRawHash() {
+		if(isImmutable && rawHash != null) {
+			return rawHash;
+		}
 		String rw = getStringValue(F_HASH);
 		// drop algorithm and everything else
 		if(rw != null) {
 			rw = rw.substring(rw.lastIndexOf(':') + 1);
 		}
+		if(isImmutable) {
+			rawHash = rw;
+		}
 		return rw;
 	}
 	
+	public OpHash getOpHash() {
+		if(isImmutable) {
+			if(opHash == null) {
+				opHash = OpHash.fromHex(getHash());
+			}
+			return opHash;
+		}
+		return OpHash.fromHex(getHash());
+	}
+	
 	public List<String> getSignatureList() {
 		return getStringList(F_SIGNATURE);
 	}
@@ -172,8 +194,7 @@ public class OpOperation extends OpObject {
 
 
 
-	public static class OpOperationBeanAdapter implements JsonDeserializer<OpOperation>,
-			JsonSerializer<OpOperation> {
+	public static class OpOperationBeanAdapter implements TypeAdapterFactory {
 
 		// plain serialization to calculate hash
 		private boolean excludeHashAndSignature;
@@ -189,43 +210,72 @@ public class OpOperation extends OpObject {
 			this.excludeHashAndSignature = false;
 		}
 		
-		
 		@Override
-		public OpOperation deserialize(JsonElement json, Type typeOfT, JsonDeserializationContext context)
-				throws JsonParseException {
-			JsonObject jsonObj = json.getAsJsonObject();
-			OpOperation op = new OpOperation();
-			JsonElement tp = jsonObj.remove(F_TYPE);
-			if(tp != null) {
-				String opType = tp.getAsString();
-				op.type = opType;
-			} else {
-				op.type = "";
+		@SuppressWarnings("unchecked")
+		public <T> TypeAdapter<T> create(final Gson gson, TypeToken<T> type) {
+			if (type.getRawType() != OpOperation.class) {
+				return null;
 			}
-			JsonElement newObjs = jsonObj.remove(F_NEW);
-			if(newObjs != null) {
-				JsonArray ar = newObjs.getAsJsonArray();
-				for(int i = 0; i < ar.size(); i++) {
-					op.addNew(context.deserialize(ar.get(i), OpObject.class));
+			return (TypeAdapter<T>) new TypeAdapter<OpOperation>() {
+
+				@Override
+				public OpOperation read(JsonReader in) throws IOException {
+					if (in.peek() == JsonToken.NULL) {
+						in.nextNull();
+						return null;
+					}
+					OpOperation op = new OpOperation();
+					op.type = "";
+					TreeMap<String, Object> fields = new TreeMap<String, Object>();
+					// new objects are added before fields (hash) are set as it was in tree deserialization
+					List<OpObject> newObjs = null;
+					in.beginObject();
+					while (in.hasNext()) {
+						String name = in.nextName();
+						if (F_TYPE.equals(name)) {
+							op.type = in.nextString();
+						} else if (F_NEW.equals(name)) {
+							TypeAdapter<OpObject> objAdapter = gson.getAdapter(OpObject.class);
+							newObjs = new ArrayList<OpObject>();
+							in.beginArray();
+							while (in.hasNext()) {
+								newObjs.add(objAdapter.read(in));
+							}
+							in.endArray();
+						} else if (F_EVAL.equals(name)) {
+							in.skipValue();
+						} else {
+							fields.put(name, JsonFormatter.readValue(in));
+						}
+					}
+					in.endObject();
+					if (newObjs != null) {
+						for (OpObject o : newObjs) {
+							op.addNew(o);
+						}
+					}
+					op.fields = fields;
+					return op;
 				}
-			}
-			jsonObj.remove(F_EVAL);
-			op.fields = context.deserialize(jsonObj, TreeMap.class);
-			return op;
-		}
 
-		@Override
-		public JsonElement serialize(OpOperation src, Type typeOfSrc, JsonSerializationContext context) {
-			TreeMap<String, Object> tm = new TreeMap<>(fullOutput ? src.getMixedFieldsAndCacheMap() : src.fields);
-			if(excludeHashAndSignature) {
-				tm.remove(F_SIGNATURE);
-				tm.remove(F_HASH);
-			}
-			tm.put(F_TYPE, src.type);
-			if(src.hasNew()) {
-				tm.put(F_NEW, context.serialize(src.newObjects));
-			}
-			return context.serialize(tm);
+				@Override
+				public void write(JsonWriter out, OpOperation src) throws IOException {
+					if (src == null) {
+						out.nullValue();
+						return;
+					}
+					TreeMap<String, Object> tm = new TreeMap<>(fullOutput ? src.getMixedFieldsAndCacheMap() : src.fields);
+					if(excludeHashAndSignature) {
+						tm.remove(F_SIGNATURE);
+						tm.remove(F_HASH);
+					}
+					tm.put(F_TYPE, src.type);
+					if(src.hasNew()) {
+						tm.put(F_NEW, src.newObjects);
+					}
+					JsonFormatter.writeMap(gson, out, tm);
+				}
+			};
 		}
 
 	}
@@ -1,20 +1,123 @@
 package org.openplacereviews.opendb.ops;
 
+import java.lang.ref.SoftReference;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.openplacereviews.opendb.ops.OpBlockChain.BlockDbAccessInterface;
+import org.openplacereviews.opendb.ops.OpBlockChain.BlockLoader;
+import org.openplacereviews.opendb.ops.de.OpHash;
 
 public class OpPrivateBlocksList {
 
-	private final Deque<OpBlock> blocks = new ConcurrentLinkedDeque<OpBlock>();
 	private final Deque<OpBlock> blockHeaders = new ConcurrentLinkedDeque<OpBlock>();
-	private final Map<String, OpBlock> blocksInfo = new ConcurrentHashMap<>();
+	private final Map<OpHash, OpBlock> blocksInfo = new ConcurrentHashMap<>();
+	// block ids within superblock are sequential, so headers (and full blocks) are indexed by id - first id
+	// full block is either OpBlock or EvictedBlock (body is persisted and could be loaded again)
+	private volatile BlocksById blocksById = new BlocksById(0);
+	// headers refer to it and resolve superblock hash on output
+	private final AtomicReference<String> superblockHash = new AtomicReference<String>("");
 	private final BlockDbAccessInterface dbAccess;
 	
+	// append only (single writer), readers see up to published size
+	private static class BlocksById {
+		final OpBlock[] headers;
+		final Object[] fullBlocks;
+		volatile int size;
+		
+		BlocksById(int capacity) {
+			headers = new OpBlock[capacity];
+			fullBlocks = new Object[capacity];
+		}
+		
+		int getFirstId() {
+			return size == 0 ? -1 : headers[0].getBlockId();
+		}
+		
+		BlocksById add(OpBlock header, Object fullBlock) {
+			int sz = size;
+			if (sz > 0 && headers[sz - 1].getBlockId() + 1 != header.getBlockId()) {
+				throw new IllegalStateException(String.format("Block %d is not sequential to block %d",
+						header.getBlockId(), headers[sz - 1].getBlockId()));
+			}
+			BlocksById res = this;
+			if (sz == headers.length) {
+				res = new BlocksById(Math.max(16, sz * 2));
+				System.arraycopy(headers, 0, res.headers, 0, sz);
+				System.arraycopy(fullBlocks, 0, res.fullBlocks, 0, sz);
+			}
+			res.headers[sz] = header;
+			res.fullBlocks[sz] = fullBlock;
+			res.size = sz + 1;
+			return res;
+		}
+		
+		int getIndex(int blockId) {
+			int sz = size;
+			if (sz == 0) {
+				return -1;
+			}
+			int ind = blockId - headers[0].getBlockId();
+			return ind >= 0 && ind < sz ? ind : -1;
+		}
+		
+		OpBlock getFullBlock(int ind) {
+			Object b = fullBlocks[ind];
+			if (b instanceof EvictedBlock) {
+				return ((EvictedBlock) b).getBlock();
+			}
+			return (OpBlock) b;
+		}
+	}
+	
+	// body stays in memory till gc needs it, afterwards it is loaded on demand
+	private static class EvictedBlock extends SoftReference<OpBlock> {
+		final OpBlock header;
+		final BlockLoader loader;
+		// cache fields (validation times etc) of operations are not persisted, so they are restored on load
+		final List<Map<String, Object>> opsCacheFields;
+		
+		EvictedBlock(OpBlock block, OpBlock header, BlockLoader loader) {
+			super(block);
+			this.header = header;
+			this.loader = loader;
+			this.opsCacheFields = new ArrayList<Map<String, Object>>(block.getOperations().size());
+			for (OpOperation o : block.getOperations()) {
+				Map<String, Object> cf = o.cacheFields;
+				opsCacheFields.add(cf == null ? null : new HashMap<String, Object>(cf));
+			}
+		}
+		
+		OpBlock getBlock() {
+			OpBlock b = get();
+			if (b == null) {
+				b = loader.loadBlock(header.getOpHash());
+				if (b == null) {
+					throw new IllegalStateException(String.format("Couldn't load '%s' block", header.getRawHash()));
+				}
+				List<OpOperation> ops = b.getOperations();
+				for (int i = 0; i < ops.size() && i < opsCacheFields.size(); i++) {
+					Map<String, Object> cacheFields = opsCacheFields.get(i);
+					if (cacheFields != null) {
+						for (Map.Entry<String, Object> e : cacheFields.entrySet()) {
+							ops.get(i).putCacheObject(e.getKey(), e.getValue());
+						}
+					}
+				}
+			}
+			return b;
+		}
+	}
+	
 	public OpPrivateBlocksList() {
 		this.dbAccess = null;
 	}
@@ -23,9 +126,16 @@ public class OpPrivateBlocksList {
 		if (headers != null) {
 			for (OpBlock b : headers) {
 				OpBlock blockHeader = new OpBlock(b, false, true).makeImmutable();
-				blocksInfo.put(blockHeader.getRawHash(), blockHeader);
+				blockHeader.superblockHash = superblockHash;
+				blocksInfo.put(blockHeader.getOpHash(), blockHeader);
 				blockHeaders.addLast(blockHeader);
 			}
+			BlocksById index = new BlocksById(blockHeaders.size());
+			Iterator<OpBlock> it = blockHeaders.descendingIterator();
+			while (it.hasNext()) {
+				index = index.add(it.next(), null);
+			}
+			blocksById = index;
 			updateHeaders(superBlockDepth);
 		}
 		this.dbAccess = dbAccess;
@@ -35,6 +145,12 @@ public class OpPrivateBlocksList {
 		if(dbAccess != null){
 			return dbAccess.getAllBlocks(blockHeaders);
 		}
+		BlocksById index = blocksById;
+		int sz = index.size;
+		Deque<OpBlock> blocks = new ArrayDeque<OpBlock>(Math.max(sz, 1));
+		for (int i = 0; i < sz; i++) {
+			blocks.push(index.getFullBlock(i));
+		}
 		return blocks;
 	}
 	
@@ -54,11 +170,11 @@ public class OpPrivateBlocksList {
 		return blockHeaders.size();
 	}
 	
-	public OpBlock getBlockHeaderByHash(String rawHash) {
+	public OpBlock getBlockHeaderByHash(OpHash rawHash) {
 		return blocksInfo.get(rawHash);
 	}
 	
-	public OpBlock getFullBlockByHash(String rawHash) {
+	public OpBlock getFullBlockByHash(OpHash rawHash) {
 		OpBlock b = blocksInfo.get(rawHash);
 		if (b == null) {
 			return null;
@@ -66,14 +182,39 @@ public class OpPrivateBlocksList {
 		if(dbAccess != null){
 			return dbAccess.getBlockByHash(rawHash);
 		}
-		for(OpBlock bs : blocks){
-			if(bs.getBlockId() == b.getBlockId()) {
-				return bs;
-			}
+		BlocksById index = blocksById;
+		int ind = index.getIndex(b.getBlockId());
+		if (ind >= 0 && index.fullBlocks[ind] != null) {
+			return index.getFullBlock(ind);
 		}
 		return b;
 	}
 	
+	public OpBlock getBlockHeaderById(int blockId) {
+		BlocksById index = blocksById;
+		int ind = index.getIndex(blockId);
+		return ind >= 0 ? index.headers[ind] : null;
+	}
+	
+	public int getFirstBlockId() {
+		return blocksById.getFirstId();
+	}
+	
+	/**
+	 * Adds headers with id >= fromId, last block first
+	 */
+	void fetchBlockHeadersFromId(List<OpBlock> lst, int fromId) {
+		BlocksById index = blocksById;
+		int sz = index.size;
+		if (sz == 0) {
+			return;
+		}
+		int from = Math.max(fromId - index.headers[0].getBlockId(), 0);
+		for (int i = sz - 1; i >= from; i--) {
+			lst.add(index.headers[i]);
+		}
+	}
+	
 	
 	public String getSuperBlockHash() {
 		if (blockHeaders.size() == 0) {
@@ -94,23 +235,61 @@ public class OpPrivateBlocksList {
 		if(dbAccess != null){
 			throw new UnsupportedOperationException();
 		}
-		blocks.push(block);
 		addBlockHeader(block, superBlockDepth);
 	}
+	
+	/**
+	 * Keeps only soft reference to the body of block which is already persisted
+	 */
+	boolean evictFullBlock(OpHash rawHash, BlockLoader loader) {
+		if(dbAccess != null){
+			throw new UnsupportedOperationException();
+		}
+		OpBlock header = blocksInfo.get(rawHash);
+		BlocksById index = blocksById;
+		int ind = header == null ? -1 : index.getIndex(header.getBlockId());
+		if (ind < 0 || !(index.fullBlocks[ind] instanceof OpBlock)) {
+			return false;
+		}
+		index.fullBlocks[ind] = new EvictedBlock((OpBlock) index.fullBlocks[ind], header, loader);
+		return true;
+	}
+	
+	/**
+	 * Drops in memory body of evicted block as gc would do (tests)
+	 */
+	boolean clearEvictedBody(OpHash rawHash) {
+		OpBlock header = blocksInfo.get(rawHash);
+		BlocksById index = blocksById;
+		int ind = header == null ? -1 : index.getIndex(header.getBlockId());
+		if (ind < 0 || !(index.fullBlocks[ind] instanceof EvictedBlock)) {
+			return false;
+		}
+		((EvictedBlock) index.fullBlocks[ind]).clear();
+		return true;
+	}
 
 	private void addBlockHeader(OpBlock block, int superBlockDepth) {
 		OpBlock blockHeader = new OpBlock(block, false, true).makeImmutable();
 		blockHeader.putCacheObject(OpBlock.F_OPERATIONS_SIZE, block.getOperations().size());
-		blocksInfo.put(blockHeader.getRawHash(), blockHeader);
+		blockHeader.superblockHash = superblockHash;
+		blocksInfo.put(blockHeader.getOpHash(), blockHeader);
 		blockHeaders.push(blockHeader);
+		blocksById = blocksById.add(blockHeader, block);
 		updateHeaders(superBlockDepth);
 	}
+	
+	private static BlocksById addAll(BlocksById index, BlocksById other) {
+		int sz = other.size;
+		for (int i = 0; i < sz; i++) {
+			// evicted bodies stay evicted
+			index = index.add(other.headers[i], other.fullBlocks[i]);
+		}
+		return index;
+	}
 
 	private void updateHeaders(int superBlockDepth) {
-		String sb = getSuperBlockHash();
-		for(OpBlock blHeader : blockHeaders) {
-			blHeader.putCacheObject(OpBlock.F_SUPERBLOCK_HASH, sb);
-		}
+		superblockHash.set(getSuperBlockHash());
 	}
 
 
@@ -118,14 +297,17 @@ public class OpPrivateBlocksList {
 		if(dbAccess != null){
 			throw new UnsupportedOperationException();
 		}
-		blocks.addAll(copy.blocks);
-		blocks.addAll(parent.blocks);
-		
 		blockHeaders.addAll(copy.blockHeaders);
 		blockHeaders.addAll(parent.blockHeaders);
 		
 		blocksInfo.putAll(copy.blocksInfo);
 		blocksInfo.putAll(parent.blocksInfo);
+		for(OpBlock blHeader : blockHeaders) {
+			blHeader.superblockHash = superblockHash;
+		}
+		BlocksById index = new BlocksById(blockHeaders.size());
+		index = addAll(index, parent.blocksById);
+		blocksById = addAll(index, copy.blocksById);
 		updateHeaders(superBlockDepth);
 		
 	}
@@ -134,9 +316,10 @@ public class OpPrivateBlocksList {
 		if(dbAccess != null){
 			throw new UnsupportedOperationException();
 		}
-		blocks.clear();
 		blocksInfo.clear();
 		blockHeaders.clear();
+		blocksById = new BlocksById(0);
+		superblockHash.set("");
 		
 	}
 
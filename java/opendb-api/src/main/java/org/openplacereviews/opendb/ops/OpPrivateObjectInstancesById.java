@@ -1,23 +1,28 @@
 package org.openplacereviews.opendb.ops;
 
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.openplacereviews.opendb.OUtils;
 import org.openplacereviews.opendb.ops.OpBlockChain.BlockDbAccessInterface;
 import org.openplacereviews.opendb.ops.OpBlockChain.ObjectsSearchRequest;
 import org.openplacereviews.opendb.ops.de.CompoundKey;
+import org.openplacereviews.opendb.util.PersistentHashMap;
 
 
 class OpPrivateObjectInstancesById {
 
 	private final String type;
-	private Map<CompoundKey, OpObject> objects = new ConcurrentHashMap<>();
+	// snapshot is replaced on every change (single writer), merges share unchanged nodes
+	private volatile PersistentHashMap<CompoundKey, OpObject> objects = PersistentHashMap.empty();
 	private volatile CacheObject cacheObject;
 	private AtomicInteger editVersion = new AtomicInteger(0);
 	private final BlockDbAccessInterface dbAccess;
@@ -46,39 +51,81 @@ class OpPrivateObjectInstancesById {
 		if(dbAccess != null){
 			throw new UnsupportedOperationException();
 		}
-		return objects;
+		return objects.asMap();
 	}
 	
-	@SuppressWarnings("unchecked")
 	public void fetchAllObjects(ObjectsSearchRequest request) {
-		
-		Map<CompoundKey, OpObject> allObjects = objects;
+		Set<CompoundKey> fetched = request.internalKeysToFilterDuplicates;
+		if(fetched == null) {
+			fetched = new HashSet<CompoundKey>();
+			request.internalKeysToFilterDuplicates = fetched;
+		}
+		if(dbAccess != null && request.requestJson) {
+			for(Entry<CompoundKey, String> e : dbAccess.getAllObjectsJson(type, request).entrySet()) {
+				if(fetched.add(e.getKey())) {
+					request.jsonResult.add(e.getValue());
+				}
+			}
+			return;
+		}
+		Map<CompoundKey, OpObject> allObjects = objects.asMap();
 		if(dbAccess != null) {
 			allObjects = dbAccess.getAllObjects(type, request);
 		}
-		if(request.result.isEmpty()) {
-			request.result.addAll(allObjects.values());
-			request.internalMapToFilterDuplicates = new HashMap<CompoundKey, OpObject>(objects); 
-		} else {
-			Map<CompoundKey, OpObject> mp = (Map<CompoundKey, OpObject>) request.internalMapToFilterDuplicates;
-			Iterator<Entry<CompoundKey, OpObject>> it = allObjects.entrySet().iterator();
-			while(it.hasNext()) {
-				Entry<CompoundKey, OpObject> k = it.next();
-				if(!mp.containsKey(k.getKey())) {
-					request.result.add(k.getValue());
-					mp.put(k.getKey(), k.getValue());
+		Iterator<Entry<CompoundKey, OpObject>> it = allObjects.entrySet().iterator();
+		while(it.hasNext()) {
+			Entry<CompoundKey, OpObject> e = it.next();
+			if(fetched.add(e.getKey())) {
+				request.result.add(e.getValue());
+			}
+		}
+	}
+	
+	Map<CompoundKey, Object> getObjectsPage(CompoundKey after, int limit, boolean json) {
+		if(dbAccess != null) {
+			return dbAccess.getObjectsPage(type, after, limit, json);
+		}
+		TreeMap<CompoundKey, Object> page = new TreeMap<CompoundKey, Object>();
+		for(Entry<CompoundKey, OpObject> e : objects) {
+			if(after == null || e.getKey().compareTo(after) > 0) {
+				page.put(e.getKey(), e.getValue());
+				if(page.size() > limit) {
+					page.pollLastEntry();
 				}
 			}
 		}
+		return page;
 	}
 	
-	private OpObject getByKey(CompoundKey k) {
+	OpObject getByKey(CompoundKey k) {
 		if(dbAccess != null) {
 			return dbAccess.getObjectById(type, k);
 		}
 		return objects.get(k);
 	}
 	
+	String getJsonByKey(CompoundKey k) {
+		if(dbAccess == null) {
+			throw new UnsupportedOperationException();
+		}
+		return dbAccess.getObjectJsonById(type, k);
+	}
+	
+	Map<CompoundKey, OpObject> getByKeys(Collection<CompoundKey> keys) {
+		if(dbAccess != null) {
+			return dbAccess.getObjectsByIds(type, keys);
+		}
+		Map<CompoundKey, OpObject> res = new HashMap<CompoundKey, OpObject>();
+		PersistentHashMap<CompoundKey, OpObject> objects = this.objects;
+		for(CompoundKey k : keys) {
+			OpObject o = objects.get(k);
+			if(o != null) {
+				res.put(k, o);
+			}
+		}
+		return res;
+	}
+	
 	public OpObject getObjectById(String primaryKey, String secondaryKey) {
 		return getByKey(new CompoundKey(primaryKey, secondaryKey)); 
 	}
@@ -93,13 +140,27 @@ class OpPrivateObjectInstancesById {
 		if(!OUtils.equals(prev.type, type)) {
 			throw new IllegalStateException(String.format("Previous type %s doesn't match current type %s", prev.type, type)); 
 		}
-		Iterator<Entry<CompoundKey, OpObject>> objs = prev.objects.entrySet().iterator();
-		while(objs.hasNext()) {
-			Entry<CompoundKey, OpObject> e = objs.next();
-			if(!objects.containsKey(e.getKey()) || overwrite) {
-				objects.put(e.getKey(), e.getValue());
+		PersistentHashMap<CompoundKey, OpObject> prevObjects = prev.objects;
+		PersistentHashMap<CompoundKey, OpObject> res = objects;
+		if (res.isEmpty()) {
+			res = prevObjects;
+		} else if (prevObjects.size() > res.size()) {
+			// iterate over smaller map
+			PersistentHashMap<CompoundKey, OpObject> cur = res;
+			res = prevObjects;
+			for (Entry<CompoundKey, OpObject> e : cur) {
+				if (!overwrite || !prevObjects.containsKey(e.getKey())) {
+					res = res.plus(e.getKey(), e.getValue());
+				}
+			}
+		} else {
+			for (Entry<CompoundKey, OpObject> e : prevObjects) {
+				if (overwrite || !res.containsKey(e.getKey())) {
+					res = res.plus(e.getKey(), e.getValue());
+				}
 			}
 		}
+		objects = res;
 		resetAfterEdit();
 		
 	}
@@ -114,9 +175,9 @@ class OpPrivateObjectInstancesById {
 			throw new UnsupportedOperationException();
 		}
 		if(newObj != null) {
-			objects.put(new CompoundKey(0, id), newObj);
+			objects = objects.plus(new CompoundKey(0, id), newObj);
 		} else {
-			objects.remove(new CompoundKey(0, id));
+			objects = objects.minus(new CompoundKey(0, id));
 		}
 		resetAfterEdit();
 	}
@@ -3,22 +3,25 @@ package org.openplacereviews.opendb.ops;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Deque;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
-import java.util.TreeSet;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedDeque;
 
 import org.openplacereviews.opendb.ops.OpBlockChain.BlockDbAccessInterface;
+import org.openplacereviews.opendb.ops.de.OpHash;
 import org.openplacereviews.opendb.ops.de.OperationDeleteInfo;
+import org.openplacereviews.opendb.util.PersistentHashMap;
 
 class OpPrivateOperations {
 	// operations to be stored like a queue
 	private final Deque<OpOperation> queueOperations = new ConcurrentLinkedDeque<OpOperation>();
 	// stores information about created and deleted objects in this blockchain 
-	private final Map<String, OperationDeleteInfo> opsByHash = new ConcurrentHashMap<>();
+	// snapshot is replaced on every change (single writer), merges share unchanged nodes
+	private volatile PersistentHashMap<OpHash, OperationDeleteInfo> opsByHash = PersistentHashMap.empty();
 	private final BlockDbAccessInterface dbAccess;
 	
 	public OpPrivateOperations(BlockDbAccessInterface dbAccess) {
@@ -41,18 +44,33 @@ class OpPrivateOperations {
 		return queueOperations.isEmpty();
 	}
 
-	public OperationDeleteInfo getOperationInfo(String rawHash) {
+	public OperationDeleteInfo getOperationInfo(OpHash rawHash) {
 		if(dbAccess != null) {
 			return dbAccess.getOperationInfo(rawHash);
 		}
 		return opsByHash.get(rawHash);
 	}
 
+	public Map<OpHash, OperationDeleteInfo> getOperationInfos(Collection<OpHash> rawHashes) {
+		if(dbAccess != null) {
+			return dbAccess.getOperationInfos(rawHashes);
+		}
+		Map<OpHash, OperationDeleteInfo> res = new HashMap<OpHash, OperationDeleteInfo>();
+		PersistentHashMap<OpHash, OperationDeleteInfo> opsByHash = this.opsByHash;
+		for(OpHash rawHash : rawHashes) {
+			OperationDeleteInfo odi = opsByHash.get(rawHash);
+			if(odi != null) {
+				res.put(rawHash, odi);
+			}
+		}
+		return res;
+	}
+
 	public Collection<OperationDeleteInfo> getOperationInfos() {
 		if(dbAccess != null) {
 			throw new UnsupportedOperationException();
 		}
-		return opsByHash.values();
+		return opsByHash.asMap().values();
 	}
 	
 
@@ -62,7 +80,7 @@ class OpPrivateOperations {
 		}
 		queueOperations.clear();
 		if(deleteInfo) {
-			opsByHash.clear();
+			opsByHash = PersistentHashMap.empty();
 		}
 	}
 	
@@ -73,25 +91,25 @@ class OpPrivateOperations {
 		OperationDeleteInfo infop = new OperationDeleteInfo();
 		infop.op = u;
 		infop.create = true;
-		opsByHash.put(u.getRawHash(), infop);
+		opsByHash = opsByHash.plus(u.getOpHash(), infop);
 		queueOperations.add(u);		
 	}
 	
-	OperationDeleteInfo addDeletedObject(String delHash, int delInd, OpOperation opRef) {
+	OperationDeleteInfo addDeletedObject(OpHash delHash, int delInd, OpOperation opRef) {
 		if(dbAccess != null) {
 			throw new UnsupportedOperationException();
 		}
-		OperationDeleteInfo pi = opsByHash.get(delHash);
+		// info could be shared with merged superblocks, so it is copied on change
+		OperationDeleteInfo pi = copyDeleteInfo(opsByHash.get(delHash));
 		if(pi.deletedObjects == null) {
 			pi.deletedObjects = new boolean[pi.op.getNew().size()];
 		}
 		if(pi.deletedOpHashes == null) {
 			pi.deletedOpHashes = new ArrayList<String>();
-		} else { 
-			pi.deletedOpHashes = new ArrayList<String>(pi.deletedOpHashes);
 		}
 		pi.deletedOpHashes.add(opRef.getRawHash());
 		pi.deletedObjects[delInd] = true;
+		opsByHash = opsByHash.plus(delHash, pi);
 		return pi;
 	}
 	
@@ -99,13 +117,17 @@ class OpPrivateOperations {
 		if(dbAccess != null) {
 			throw new UnsupportedOperationException();
 		}
-		TreeSet<String> setOfOperations = new TreeSet<String>(parent.opsByHash.keySet());
-		setOfOperations.addAll(copy.opsByHash.keySet());
-		for (String operation : setOfOperations) {
-			OperationDeleteInfo cp = copy.opsByHash.get(operation);
-			OperationDeleteInfo pp = parent.opsByHash.get(operation);
-			this.opsByHash.put(operation, mergeDeleteInfo(cp, pp));
-		}		
+		PersistentHashMap<OpHash, OperationDeleteInfo> cops = copy.opsByHash;
+		PersistentHashMap<OpHash, OperationDeleteInfo> pops = parent.opsByHash;
+		// operations present only in the bigger superblock are shared as is
+		boolean copyIsSmaller = cops.size() <= pops.size();
+		PersistentHashMap<OpHash, OperationDeleteInfo> res = copyIsSmaller ? pops : cops;
+		for (Entry<OpHash, OperationDeleteInfo> e : (copyIsSmaller ? cops : pops)) {
+			OperationDeleteInfo cp = copyIsSmaller ? e.getValue() : cops.get(e.getKey());
+			OperationDeleteInfo pp = copyIsSmaller ? pops.get(e.getKey()) : e.getValue();
+			res = res.plus(e.getKey(), mergeDeleteInfo(cp, pp));
+		}
+		this.opsByHash = res;
 	}
 	
 	void removeOperationInfo(OpOperation op) {
@@ -113,21 +135,24 @@ class OpPrivateOperations {
 			throw new UnsupportedOperationException();
 		}
 		// delete operation itself
-		OperationDeleteInfo odi = opsByHash.remove(op.getRawHash());
-		odi.create = false;
+		opsByHash = opsByHash.minus(op.getOpHash());
 		// delete deleted objects by name
 		List<String> deletedRefs = op.getOld();
 		String rawHash = op.getRawHash();
 		for (int i = 0; i < deletedRefs.size(); i++) {
 			String delRef = deletedRefs.get(i);
-			String delHash = OpBlockChain.getHashFromAbsRef(delRef);
+			OpHash delHash = OpHash.fromHex(OpBlockChain.getHashFromAbsRef(delRef));
 			int delInd = OpBlockChain.getIndexFromAbsRef(delRef);
 			OperationDeleteInfo pi = opsByHash.get(delHash);
-			if (pi != null && pi.deletedObjects.length > delInd) {
-				pi.deletedObjects[delInd] = false;
-			}
-			if(pi != null && pi.deletedOpHashes != null) {
-				pi.deletedOpHashes.remove(rawHash);
+			if (pi != null) {
+				pi = copyDeleteInfo(pi);
+				if (pi.deletedObjects != null && pi.deletedObjects.length > delInd) {
+					pi.deletedObjects[delInd] = false;
+				}
+				if (pi.deletedOpHashes != null) {
+					pi.deletedOpHashes.remove(rawHash);
+				}
+				opsByHash = opsByHash.plus(delHash, pi);
 			}
 		}
 	}
@@ -146,6 +171,15 @@ class OpPrivateOperations {
 		}		
 	}
 	
+	private static OperationDeleteInfo copyDeleteInfo(OperationDeleteInfo odi) {
+		OperationDeleteInfo ndi = new OperationDeleteInfo();
+		ndi.op = odi.op;
+		ndi.create = odi.create;
+		ndi.deletedObjects = odi.deletedObjects == null ? null : odi.deletedObjects.clone();
+		ndi.deletedOpHashes = odi.deletedOpHashes == null ? null : new ArrayList<String>(odi.deletedOpHashes);
+		return ndi;
+	}
+	
 	static OperationDeleteInfo mergeDeleteInfo(OperationDeleteInfo cdi, OperationDeleteInfo pdi) {
 		OperationDeleteInfo ndi = new OperationDeleteInfo();
 		ndi.op = pdi != null ? pdi.op : cdi.op;
@@ -0,0 +1,211 @@
+package org.openplacereviews.opendb.ops;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Transitive closure of sys.role hierarchy. Roles are coded by integers and the roles given by a role
+ * (role itself and all roles which have it as a super role, recursively) are kept as a bitset.
+ * Object is immutable, new closure is built incrementally when roles are only added.
+ */
+public class RolesClosure {
+
+	// cache of roles given by sys.grant object
+	private static final String F_EFFECTIVE_ROLES = "effectiveRoles";
+
+	private final Map<String, Integer> ids;
+	private final List<String> names;
+	private final List<BitSet> closure;
+	private final Map<String, OpObject> roleObjects;
+	// super roles referenced by roles but not existing
+	private final Set<String> missingSuperRoles;
+	private volatile Map<String, Set<String>> rolesMap;
+
+	private RolesClosure(Map<String, Integer> ids, List<String> names, List<BitSet> closure,
+			Map<String, OpObject> roleObjects, Set<String> missingSuperRoles) {
+		this.ids = ids;
+		this.names = names;
+		this.closure = closure;
+		this.roleObjects = roleObjects;
+		this.missingSuperRoles = missingSuperRoles;
+	}
+
+	public static RolesClosure build(Collection<OpObject> roles, RolesClosure prev) {
+		Map<String, OpObject> roleObjects = new TreeMap<String, OpObject>();
+		for (OpObject r : roles) {
+			roleObjects.put(r.getId().get(0), r);
+		}
+		if (prev != null) {
+			RolesClosure res = prev.addRoles(roleObjects);
+			if (res != null) {
+				return res;
+			}
+		}
+		Map<String, Integer> ids = new HashMap<String, Integer>();
+		List<String> names = new ArrayList<String>();
+		List<BitSet> closure = new ArrayList<BitSet>();
+		for (String roleId : roleObjects.keySet()) {
+			BitSet b = new BitSet();
+			b.set(names.size());
+			ids.put(roleId, names.size());
+			names.add(roleId);
+			closure.add(b);
+		}
+		List<List<Integer>> children = new ArrayList<List<Integer>>();
+		for (int i = 0; i < names.size(); i++) {
+			children.add(new ArrayList<Integer>());
+		}
+		Set<String> missingSuperRoles = new TreeSet<String>();
+		for (OpObject r : roleObjects.values()) {
+			int roleInd = ids.get(r.getId().get(0));
+			for (String superRole : r.getStringList(OpBlockchainRules.F_SUPER_ROLES)) {
+				Integer superInd = ids.get(superRole);
+				if (superInd == null) {
+					missingSuperRoles.add(superRole);
+				} else {
+					children.get(superInd).add(roleInd);
+				}
+			}
+		}
+		// number of iteration depends on the roles depth
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (int i = 0; i < names.size(); i++) {
+				BitSet b = closure.get(i);
+				int card = b.cardinality();
+				for (int c : children.get(i)) {
+					b.or(closure.get(c));
+				}
+				if (card != b.cardinality()) {
+					changed = true;
+				}
+			}
+		}
+		return new RolesClosure(ids, names, closure, roleObjects, missingSuperRoles);
+	}
+
+	// returns null if roles were changed or deleted
+	private RolesClosure addRoles(Map<String, OpObject> newRoleObjects) {
+		for (Map.Entry<String, OpObject> e : roleObjects.entrySet()) {
+			if (newRoleObjects.get(e.getKey()) != e.getValue()) {
+				return null;
+			}
+		}
+		List<OpObject> added = new ArrayList<OpObject>();
+		for (Map.Entry<String, OpObject> e : newRoleObjects.entrySet()) {
+			if (!roleObjects.containsKey(e.getKey())) {
+				if (missingSuperRoles.contains(e.getKey())) {
+					return null;
+				}
+				added.add(e.getValue());
+			}
+		}
+		if (added.isEmpty()) {
+			return this;
+		}
+		Map<String, Integer> nids = new HashMap<String, Integer>(ids);
+		List<String> nnames = new ArrayList<String>(names);
+		List<BitSet> nclosure = new ArrayList<BitSet>(closure.size() + added.size());
+		for (BitSet b : closure) {
+			nclosure.add((BitSet) b.clone());
+		}
+		Set<String> nmissing = new TreeSet<String>(missingSuperRoles);
+		for (OpObject r : added) {
+			String roleId = r.getId().get(0);
+			BitSet superRoles = new BitSet();
+			for (String superRole : r.getStringList(OpBlockchainRules.F_SUPER_ROLES)) {
+				if (newRoleObjects.containsKey(superRole) && !roleObjects.containsKey(superRole)) {
+					// hierarchy between added roles
+					return null;
+				}
+				Integer superInd = ids.get(superRole);
+				if (superInd == null) {
+					nmissing.add(superRole);
+				} else {
+					superRoles.set(superInd);
+				}
+			}
+			int roleInd = nnames.size();
+			nids.put(roleId, roleInd);
+			nnames.add(roleId);
+			// added role doesn't have sub roles yet, so it is given by every role which gives its super role
+			for (BitSet b : nclosure) {
+				if (b.intersects(superRoles)) {
+					b.set(roleInd);
+				}
+			}
+			BitSet b = new BitSet();
+			b.set(roleInd);
+			nclosure.add(b);
+		}
+		return new RolesClosure(nids, nnames, nclosure, newRoleObjects, nmissing);
+	}
+
+	/**
+	 * Map role -> roles given by the role (including itself)
+	 */
+	public Map<String, Set<String>> getRolesMap() {
+		Map<String, Set<String>> mp = rolesMap;
+		if (mp == null) {
+			mp = new TreeMap<String, Set<String>>();
+			for (int i = 0; i < names.size(); i++) {
+				Set<String> st = new TreeSet<String>();
+				BitSet b = closure.get(i);
+				for (int j = b.nextSetBit(0); j >= 0; j = b.nextSetBit(j + 1)) {
+					st.add(names.get(j));
+				}
+				mp.put(names.get(i), Collections.unmodifiableSet(st));
+			}
+			mp = Collections.unmodifiableMap(mp);
+			rolesMap = mp;
+		}
+		return mp;
+	}
+
+	/**
+	 * Checks whether sys.grant object gives the role directly or by role hierarchy
+	 */
+	public boolean hasRole(OpObject grantObj, String role) {
+		Integer id = ids.get(role);
+		if (id == null) {
+			return grantObj.getStringList(OpBlockchainRules.F_ROLES).contains(role);
+		}
+		return getEffectiveRoles(grantObj).get(id);
+	}
+
+	private BitSet getEffectiveRoles(OpObject grantObj) {
+		// grant objects are immutable and replaced on change
+		EffectiveRoles e = (EffectiveRoles) grantObj.getCacheObject(F_EFFECTIVE_ROLES);
+		if (e != null && e.roles == this) {
+			return e.bits;
+		}
+		BitSet bits = new BitSet();
+		for (String grantedRole : grantObj.getStringList(OpBlockchainRules.F_ROLES)) {
+			Integer ind = ids.get(grantedRole);
+			if (ind != null) {
+				bits.or(closure.get(ind));
+			}
+		}
+		grantObj.putCacheObject(F_EFFECTIVE_ROLES, new EffectiveRoles(this, bits));
+		return bits;
+	}
+
+	private static class EffectiveRoles {
+		final RolesClosure roles;
+		final BitSet bits;
+
+		EffectiveRoles(RolesClosure roles, BitSet bits) {
+			this.roles = roles;
+			this.bits = bits;
+		}
+	}
+}
@@ -8,7 +8,7 @@ import java.util.List;
 
 import org.openplacereviews.opendb.OUtils;
 
-public class CompoundKey implements Collection<String> {
+public class CompoundKey implements Collection<String>, Comparable<CompoundKey> {
 	final String first;
 	final String second;
 	final int hashcode;
@@ -85,6 +85,47 @@ public class CompoundKey implements Collection<String> {
 		return true;
 	}
 
+	/**
+	 * Parts are compared one by one (missing part goes first), same as order by pN COLLATE "C" NULLS FIRST.
+	 * "C" collation compares utf-8 bytes, so parts are compared by code points (not by utf-16 chars)
+	 */
+	@Override
+	public int compareTo(CompoundKey o) {
+		int s1 = size();
+		int s2 = o.size();
+		for (int i = 0; i < s1 && i < s2; i++) {
+			int c = compareCodePoints(getPart(i), o.getPart(i));
+			if (c != 0) {
+				return c;
+			}
+		}
+		return Integer.compare(s1, s2);
+	}
+	
+	private static int compareCodePoints(String s1, String s2) {
+		int l1 = s1.length();
+		int l2 = s2.length();
+		int i = 0;
+		while (i < l1 && i < l2) {
+			int c1 = s1.codePointAt(i);
+			int c2 = s2.codePointAt(i);
+			if (c1 != c2) {
+				return Integer.compare(c1, c2);
+			}
+			i += Character.charCount(c1);
+		}
+		return Integer.compare(l1, l2);
+	}
+
+	private String getPart(int ind) {
+		if (ind == 0) {
+			return first;
+		} else if (ind == 1) {
+			return second;
+		}
+		return others.get(ind - 2);
+	}
+
 	@Override
 	public Iterator<String> iterator() {
 		return new Iterator<String>() {
@@ -96,7 +137,7 @@ public class CompoundKey implements Collection<String> {
 				} else if (ind == 1) {
 					return second;
 				} else if (others != null && others.size() > ind - 2) {
-					others.get(ind - 2);
+					return others.get(ind - 2);
 				}
 				return null;
 			}
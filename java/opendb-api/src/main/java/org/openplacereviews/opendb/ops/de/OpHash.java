@@ -0,0 +1,88 @@
+package org.openplacereviews.opendb.ops.de;
+
+import java.util.Arrays;
+
+import org.openplacereviews.opendb.SecUtils;
+
+/**
+ * Binary hash of operation or block. Hex and prefixed ("json:sha256:...") forms are kept lazily,
+ * equality doesn't depend on prefix. Byte array is shared and must not be modified.
+ */
+public final class OpHash {
+	private final byte[] hash;
+	private final int hashcode;
+	private volatile String hex;
+	private volatile String prefixed;
+
+	private OpHash(byte[] hash, String hex, String prefixed) {
+		this.hash = hash;
+		this.hex = hex;
+		this.prefixed = prefixed;
+		this.hashcode = Arrays.hashCode(hash);
+	}
+
+	/**
+	 * Parses raw hex hash or hash with algorithm prefix, returns null for empty hash
+	 */
+	public static OpHash fromHex(String hash) {
+		if (hash == null || hash.length() == 0) {
+			return null;
+		}
+		int i = hash.lastIndexOf(':');
+		String hex = i >= 0 ? hash.substring(i + 1) : hash;
+		return new OpHash(SecUtils.getHashBytes(hex), hex, i >= 0 ? hash : null);
+	}
+
+	public static OpHash fromBytes(byte[] hash) {
+		if (hash == null || hash.length == 0) {
+			return null;
+		}
+		return new OpHash(hash, null, null);
+	}
+
+	public byte[] getBytes() {
+		return hash;
+	}
+
+	/**
+	 * Raw hash without algorithm prefix
+	 */
+	public String getHex() {
+		String h = hex;
+		if (h == null) {
+			h = SecUtils.hexify(hash);
+			hex = h;
+		}
+		return h;
+	}
+
+	/**
+	 * Hash with algorithm prefix if it was parsed with it otherwise raw hash
+	 */
+	public String getPrefixedHash() {
+		String p = prefixed;
+		return p == null ? getHex() : p;
+	}
+
+	@Override
+	public int hashCode() {
+		return hashcode;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof OpHash)) {
+			return false;
+		}
+		OpHash o = (OpHash) obj;
+		return hashcode == o.hashcode && Arrays.equals(hash, o.hash);
+	}
+
+	@Override
+	public String toString() {
+		return getHex();
+	}
+}
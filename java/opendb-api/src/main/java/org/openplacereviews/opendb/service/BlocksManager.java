@@ -17,6 +17,12 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -69,7 +75,23 @@ public class BlocksManager {
 	
 	private BlockchainMgmtStatus mgmtStatus = BlockchainMgmtStatus.BLOCK_CREATION; 
 	
-	private OpBlockChain blockchain; 
+	private volatile OpBlockChain blockchain; 
+	
+	// operation queue size when db compaction is postponed
+	@Value("${opendb.db.compactSkipQueueSize}")
+	private int compactSkipQueueSize = 1000;
+	
+	// superblocks are saved by background writer and db superblocks are compacted by background compactor,
+	// so block creation doesn't wait for db. Save and compaction run in parallel, their changes are applied one by one
+	private final ExecutorService superblockWriter = createBackgroundExecutor("superblock-writer");
+	private final ExecutorService superblockCompactor = createBackgroundExecutor("superblock-compactor");
+	// task is finished once its change [replaced superblock, equal superblock] is applied to main chain (false if it failed)
+	private Future<Boolean> superblockSaveTask;
+	private Future<Boolean> compactTask;
+	private boolean superblockSaveRequested;
+	private boolean compactRequested;
+	// compacted db superblocks are waiting till running save is applied, new saves are postponed
+	private boolean compactApplyPending;
 	
 	private enum BlockchainMgmtStatus {
 		BLOCK_CREATION,
@@ -147,10 +169,16 @@ public class BlocksManager {
 		return false;
 	}
 	
-	public synchronized boolean validateOperation(OpOperation op) {
-		if(blockchain == null) {
+	public boolean validateOperation(OpOperation op) {
+		OpBlockChain blc = blockchain;
+		if(blc == null) {
 			return false;
 		}
+		blc.getRules().prevalidateOp(blc, op);
+		return validatePrevalidatedOperation(op);
+	}
+	
+	private synchronized boolean validatePrevalidatedOperation(OpOperation op) {
 		return blockchain.validateOperation(op);
 	}
 	
@@ -162,11 +190,18 @@ public class BlocksManager {
 		return false;
 	}
 	
-	public synchronized boolean addOperation(OpOperation op) {
-		if(blockchain == null) {
+	public boolean addOperation(OpOperation op) {
+		OpBlockChain blc = blockchain;
+		if(blc == null) {
 			return false;
 		}
 		op.makeImmutable();
+		// hash & signatures are checked concurrently by caller threads, only adding to queue is serialized
+		blc.getRules().prevalidateOp(blc, op);
+		return addPrevalidatedOperation(op);
+	}
+	
+	private synchronized boolean addPrevalidatedOperation(OpOperation op) {
 		boolean existing = dataManager.validateExistingOperation(op);
 		boolean added = blockchain.addOperation(op);
 		// all 3 methods in synchronized block, so it is almost guaranteed insertOperation won't fail
@@ -221,18 +256,9 @@ public class BlocksManager {
 			return null;
 		}
 		timer.measure(tmRebase, ValidationTimer.BLC_REBASE);
+		dataManager.evictBlockBody(blockChain, opBlock);
 		
-		int tmSDbSave = timer.startExtra();
-		OpBlockChain savedParent = dataManager.saveMainBlockchain(blockchain.getParent());
-		if(blockchain.getParent() != savedParent) {
-			blockchain.changeToEqualParent(savedParent);
-		}
-		timer.measure(tmSDbSave, ValidationTimer.BLC_SAVE);
-		
-		int tmCompact = timer.startExtra();
-		compact();
-		timer.measure(tmCompact, ValidationTimer.BLC_COMPACT);
-		
+		scheduleSuperblockSave();
 		
 		opBlock.putCacheObject(OpObject.F_VALIDATION, timer.getTimes());
 		logSystem.logSuccessBlock(opBlock, 
@@ -241,12 +267,181 @@ public class BlocksManager {
 		return opBlock;
 	}
 
-	public synchronized boolean compact() {
-		OpBlockChain newParent = dataManager.compact(0, blockchain.getParent(), true);
-		if(newParent != blockchain.getParent()) {
-			blockchain.changeToEqualParent(newParent);
+	public boolean compact() {
+		Future<Boolean> task = null;
+		while (task == null) {
+			waitSuperblockChanges();
+			synchronized (this) {
+				if (superblockSaveTask == null && compactTask == null) {
+					scheduleCompaction(true);
+					task = compactTask;
+				}
+			}
+		}
+		return waitTask(task);
+	}
+	
+	// waits without lock, cause tasks apply their changes under it
+	private void waitSuperblockChanges() {
+		Future<Boolean> save;
+		Future<Boolean> compact;
+		synchronized (this) {
+			save = superblockSaveTask;
+			compact = compactTask;
+		}
+		waitTask(save);
+		waitTask(compact);
+	}
+	
+	private boolean waitTask(Future<Boolean> task) {
+		if (task == null) {
+			return true;
+		}
+		try {
+			return task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		} catch (ExecutionException e) {
+			return false;
+		}
+	}
+	
+	private static ExecutorService createBackgroundExecutor(final String name) {
+		return Executors.newSingleThreadExecutor(new ThreadFactory() {
+			
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, name);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+	
+	private void scheduleSuperblockSave() {
+		if (superblockSaveTask != null || compactApplyPending) {
+			// will be rescheduled after changes are applied
+			superblockSaveRequested = true;
+			return;
+		}
+		superblockSaveRequested = false;
+		superblockSaveTask = submitChainChange(superblockWriter, true, new Callable<OpBlockChain[]>() {
+
+			@Override
+			public OpBlockChain[] call() throws Exception {
+				OpBlockChain parent = blockchain.getParent();
+				OpBlockChain savedParent = dataManager.saveMainBlockchain(parent);
+				OpBlockChain newParent = dataManager.compact(0, savedParent);
+				if (newParent == parent) {
+					return null;
+				}
+				return new OpBlockChain[] { parent, newParent };
+			}
+		}, null);
+	}
+	
+	// runs along with superblock saves, only switch of main chain waits for running save
+	private void scheduleCompaction(final boolean force) {
+		if (compactTask != null) {
+			compactRequested = true;
+			return;
+		}
+		compactRequested = false;
+		compactTask = submitChainChange(superblockCompactor, false, new Callable<OpBlockChain[]>() {
+
+			@Override
+			public OpBlockChain[] call() throws Exception {
+				OpBlockChain parent = blockchain.getParent();
+				int queueSize = blockchain.getQueueOperations().size();
+				if (!force && queueSize >= compactSkipQueueSize) {
+					LOGGER.info(String.format("Compaction is postponed, %d operations in queue", queueSize));
+					return null;
+				}
+				return dataManager.compactDbSuperblocks(parent);
+			}
+		}, new Runnable() {
+
+			@Override
+			public void run() {
+				// compacted superblocks are not referenced by main chain anymore
+				dataManager.removeCompactedSuperblocks();
+			}
+		});
+	}
+	
+	private Future<Boolean> submitChainChange(ExecutorService executor, final boolean save, 
+			final Callable<OpBlockChain[]> change, final Runnable afterApply) {
+		return executor.submit(new Callable<Boolean>() {
+
+			@Override
+			public Boolean call() throws Exception {
+				OpBlockChain[] res = null;
+				boolean succeed = false;
+				try {
+					res = change.call();
+					succeed = true;
+				} catch (Exception e) {
+					LOGGER.error(String.format("Error while %s superblock: %s", save ? "saving" : "compacting", 
+							e.getMessage()), e);
+				} finally {
+					if (!save && res != null) {
+						waitSuperblockSave();
+					}
+					applySuperblockChanges(save, res);
+				}
+				if (res != null && afterApply != null) {
+					afterApply.run();
+				}
+				return succeed;
+			}
+		});
+	}
+	
+	// superblock being saved could reference compacted db superblocks, so compaction is applied after it
+	private void waitSuperblockSave() {
+		while (true) {
+			Future<Boolean> save;
+			synchronized (this) {
+				compactApplyPending = true;
+				save = superblockSaveTask;
+			}
+			if (save == null) {
+				return;
+			}
+			waitTask(save);
+		}
+	}
+	
+	// switches main chain to new superblocks under the same lock as other main chain changes
+	private synchronized void applySuperblockChanges(boolean save, OpBlockChain[] change) {
+		if (save) {
+			superblockSaveTask = null;
+		} else {
+			compactTask = null;
+			compactApplyPending = false;
+		}
+		if (change != null) {
+			// find chain with changed parent: queue or superblock created after task started 
+			OpBlockChain blc = blockchain;
+			while (!blc.isNullBlock() && blc.getParent() != change[0]) {
+				blc = blc.getParent();
+			}
+			if (blc.isNullBlock()) {
+				LOGGER.warn(String.format("Changed superblock '%s' is not part of the main chain", 
+						change[0].getSuperBlockHash()));
+			} else if (!blc.changeToEqualParent(change[1])) {
+				throw new IllegalStateException(String.format("Can't change parent '%s' to '%s'",
+						change[0].getSuperBlockHash(), change[1].getSuperBlockHash()));
+			}
+		}
+		// there could be more superblocks to save or compact
+		if (superblockSaveRequested || (save && change != null)) {
+			scheduleSuperblockSave();
+		}
+		if (compactRequested || change != null) {
+			scheduleCompaction(false);
 		}
-		return true;
 	}
 	
 	public synchronized boolean clearQueue() {
@@ -374,7 +569,19 @@ public class BlocksManager {
 		}
 	}
 	
-	public synchronized boolean revertOneBlock() throws FailedVerificationException {
+	public boolean revertOneBlock() throws FailedVerificationException {
+		while (true) {
+			// no db changes of parent chain during revert
+			waitSuperblockChanges();
+			synchronized (this) {
+				if (superblockSaveTask == null && compactTask == null) {
+					return revertOneBlockNoChanges();
+				}
+			}
+		}
+	}
+	
+	private boolean revertOneBlockNoChanges() throws FailedVerificationException {
 		if (OpBlockChain.UNLOCKED != blockchain.getStatus()) {
 			throw new IllegalStateException("Blockchain is not ready to create block");
 		}
@@ -382,7 +589,7 @@ public class BlocksManager {
 			return false;
 		}
 		if (blockchain.getParent().getSuperblockSize() == 1 || blockchain.getParent().isDbAccessed()) {
-			return revertSuperblock();
+			return revertSuperblockNoChanges();
 		}
 
 		OpBlockChain newParent = new OpBlockChain(blockchain.getParent().getParent(), blockchain.getRules());
@@ -417,7 +624,19 @@ public class BlocksManager {
 		return true;
 	}
 	
-	public synchronized boolean revertSuperblock() throws FailedVerificationException {
+	public boolean revertSuperblock() throws FailedVerificationException {
+		while (true) {
+			// no db changes of parent chain during revert
+			waitSuperblockChanges();
+			synchronized (this) {
+				if (superblockSaveTask == null && compactTask == null) {
+					return revertSuperblockNoChanges();
+				}
+			}
+		}
+	}
+	
+	private boolean revertSuperblockNoChanges() throws FailedVerificationException {
 		if (OpBlockChain.UNLOCKED != blockchain.getStatus()) {
 			throw new IllegalStateException("Blockchain is not ready to create block");
 		}
@@ -5,6 +5,7 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.AbstractMap.SimpleImmutableEntry;
 import java.util.ArrayList;
 import java.util.BitSet;
 import java.util.Collection;
@@ -18,11 +19,16 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock.ReadLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock.WriteLock;
 
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openplacereviews.opendb.OUtils;
@@ -34,28 +40,43 @@ import org.openplacereviews.opendb.SecUtils;
 import org.openplacereviews.opendb.ops.OpBlock;
 import org.openplacereviews.opendb.ops.OpBlockChain;
 import org.openplacereviews.opendb.ops.OpBlockChain.BlockDbAccessInterface;
+import org.openplacereviews.opendb.ops.OpBlockChain.BlockLoader;
 import org.openplacereviews.opendb.ops.OpBlockChain.ObjectsSearchRequest;
 import org.openplacereviews.opendb.ops.OpBlockchainRules;
 import org.openplacereviews.opendb.ops.OpObject;
 import org.openplacereviews.opendb.ops.OpOperation;
 import org.openplacereviews.opendb.ops.de.CompoundKey;
+import org.openplacereviews.opendb.ops.de.OpHash;
 import org.openplacereviews.opendb.ops.de.OperationDeleteInfo;
+import org.openplacereviews.opendb.util.BloomFilter;
 import org.openplacereviews.opendb.util.JsonFormatter;
 import org.postgresql.util.PGobject;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.ConnectionCallback;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.ParameterizedPreparedStatementSetter;
 import org.springframework.jdbc.core.PreparedStatementCreator;
 import org.springframework.jdbc.core.ResultSetExtractor;
 import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.jdbc.core.RowMapper;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
 
 @Service
 public class DBConsensusManager {
 	protected static final Log LOGGER = LogFactory.getLog(DBConsensusManager.class);
 	
+	private static final int BLOCKS_FETCH_SIZE = 4;
+	// superblock_filters type of filter over operation hashes (op_deleted)
+	private static final String FILTER_OPERATIONS = "op";
+	// marks that superblock was saved without filter
+	private static final BloomFilter NO_FILTER = BloomFilter.create(1);
+	
 	// check SimulateSuperblockCompactSequences to verify numbers
 	@Value("${opendb.db.compactCoefficient}")
 	private double compactCoefficient = 1;
@@ -63,9 +84,37 @@ public class DBConsensusManager {
 	@Value("${opendb.db.dbSuperblockSize}")
 	private int superblockSize = 32;
 	
+	@Value("${opendb.db.batchSize}")
+	private int batchSize = 1000;
+	
+	// rows per second written by compaction, 0 - unlimited
+	@Value("${opendb.db.compactIoBudget}")
+	private int compactIoBudget = 0;
+	
+	@Value("${opendb.db.superblockCacheSize}")
+	private int superblockCacheSize = 4096;
+	
+	@Value("${opendb.db.superblockCacheBytes}")
+	private long superblockCacheBytes = 8 << 20;
+	
+	// runtime superblocks keep only soft references to bodies of persisted blocks
+	@Value("${opendb.db.evictBlockBodies}")
+	private boolean evictBlockBodies = false;
+	
+	// recently loaded block bodies
+	@Value("${opendb.db.blockCacheSize}")
+	private int blockCacheSize = 64;
+	
+	@Value("${opendb.db.blockCacheBytes}")
+	private long blockCacheBytes = 32 << 20;
+	
 	@Autowired
 	private JdbcTemplate jdbcTemplate;
 	
+	// db changes of background writer / compactor should be done on 1 connection
+	@Autowired
+	private TransactionTemplate txTemplate;
+	
 	@Autowired
 	private DBSchemaManager dbSchema;
 	
@@ -77,11 +126,49 @@ public class DBConsensusManager {
 	
 	@Autowired
 	private LogOperationService logSystem;
+	
+	@Autowired(required = false)
+	private MeterRegistry meterRegistry;
 
 	private Map<String, OpBlock> blocks = new ConcurrentHashMap<String, OpBlock>();
 	private Map<String, OpBlock> orphanedBlocks = new ConcurrentHashMap<String, OpBlock>();
 	private Map<String, SuperblockDbAccess> dbSuperBlocks = new ConcurrentHashMap<>();
+	private List<SuperblockDbAccess> compactedSuperblocks = new ArrayList<SuperblockDbAccess>();
 	private OpBlockChain dbManagedChain = null;
+	private final AtomicLong cacheHits = new AtomicLong();
+	private final AtomicLong cacheMisses = new AtomicLong();
+	private final AtomicLong cacheEvictions = new AtomicLong();
+	private final AtomicLong blockCacheHits = new AtomicLong();
+	private final AtomicLong blockCacheMisses = new AtomicLong();
+	private final AtomicLong blockCacheEvictions = new AtomicLong();
+	private final SuperblockCache blockBodiesCache = new SuperblockCache(blockCacheHits, blockCacheMisses, 
+			blockCacheEvictions) {
+		
+		@Override
+		int getMaxSize() {
+			return blockCacheSize;
+		}
+		
+		@Override
+		long getMaxBytes() {
+			return blockCacheBytes;
+		}
+	};
+	private final BlockLoader blockLoader = new BlockLoader() {
+		
+		@Override
+		public OpBlock loadBlock(OpHash rawHash) {
+			OpBlock b = (OpBlock) blockBodiesCache.get(rawHash);
+			if (b == null) {
+				String content = loadBlockContent(rawHash.getBytes());
+				if (content != null) {
+					b = parseBlock(content);
+					blockBodiesCache.put(rawHash, b, content.length());
+				}
+			}
+			return b;
+		}
+	};
 	
 	public Map<String, OpBlock> getOrphanedBlocks() {
 		return orphanedBlocks;
@@ -106,6 +193,7 @@ public class DBConsensusManager {
 	public synchronized OpBlockChain init(MetadataDb metadataDB) {
 		dbSchema.initializeDatabaseSchema(metadataDB, jdbcTemplate);
 		backupManager.init();
+		registerCacheMetrics();
 		final OpBlockchainRules rules = new OpBlockchainRules(formatter, logSystem);
 		LOGGER.info("... Loading block headers ...");
 		dbManagedChain = loadBlockHeadersAndBuildMainChain(rules);
@@ -128,20 +216,24 @@ public class DBConsensusManager {
 		OpBlockChain blcQueue = new OpBlockChain(topChain, rules);
 		
 		LOGGER.info("... Loading operation queue  ...");
-		int[] ops = new int[1];
+		List<OpOperation> ops = new ArrayList<OpOperation>();
 		jdbcTemplate.query("SELECT content from " + OPERATIONS_TABLE + " where blocks is null order by dbid asc ",
 				new RowCallbackHandler() {
 
 			@Override
 			public void processRow(ResultSet rs) throws SQLException {
-				ops[0]++;
 				OpOperation op = formatter.parseOperation(rs.getString(1));
 				op.makeImmutable();
-				blcQueue.addOperation(op);
+				ops.add(op);
 			}
 			
 		});
-		LOGGER.info(String.format("... Loaded operation %d into queue  ...", ops[0]));
+		// hashes and signatures are verified in parallel, operations are added in order
+		rules.prevalidateOps(blcQueue, ops);
+		for (OpOperation op : ops) {
+			blcQueue.addOperation(op);
+		}
+		LOGGER.info(String.format("... Loaded operation %d into queue  ...", ops.size()));
 		LOGGER.info(String.format("+++ Database blockchain initialized +++"));
 		return blcQueue;
 	}
@@ -149,6 +241,24 @@ public class DBConsensusManager {
 	
 
 
+	private void registerCacheMetrics() {
+		if (meterRegistry == null) {
+			return;
+		}
+		FunctionCounter.builder("opendb.db.superblock.cache.hits", cacheHits, AtomicLong::doubleValue)
+				.register(meterRegistry);
+		FunctionCounter.builder("opendb.db.superblock.cache.misses", cacheMisses, AtomicLong::doubleValue)
+				.register(meterRegistry);
+		FunctionCounter.builder("opendb.db.superblock.cache.evictions", cacheEvictions, AtomicLong::doubleValue)
+				.register(meterRegistry);
+		FunctionCounter.builder("opendb.db.blocks.cache.hits", blockCacheHits, AtomicLong::doubleValue)
+				.register(meterRegistry);
+		FunctionCounter.builder("opendb.db.blocks.cache.misses", blockCacheMisses, AtomicLong::doubleValue)
+				.register(meterRegistry);
+		FunctionCounter.builder("opendb.db.blocks.cache.evictions", blockCacheEvictions, AtomicLong::doubleValue)
+				.register(meterRegistry);
+	}
+
 	private OpBlockChain loadBlocks(List<OpBlock> topBlockInfo, final OpBlockChain newParent, 
 			final OpBlockchainRules rules) {
 		if(topBlockInfo.size() == 0) {
@@ -163,28 +273,71 @@ public class DBConsensusManager {
 				throw new IllegalStateException("Could not replicate block " + blockHash + " "
 						+ formatter.toJson(rawBlock));
 			}
+			evictBlockBody(blc, replicateBlock);
 		}
 		return blc;
 	}
 
 
 	private OpBlock loadBlock(String blockHash) {
-		List<OpBlock> blocks = jdbcTemplate.query("SELECT content from " + BLOCKS_TABLE + " where hash = ? ",
-				new Object[] { SecUtils.getHashBytes(blockHash) }, new RowMapper<OpBlock>() {
+		return loadBlock(SecUtils.getHashBytes(blockHash));
+	}
+	
+	private OpBlock loadBlock(byte[] blockHash) {
+		String content = loadBlockContent(blockHash);
+		return content == null ? null : parseBlock(content);
+	}
+	
+	private OpBlock parseBlock(String content) {
+		OpBlock rawBlock = formatter.parseBlock(content);
+		rawBlock.makeImmutable();
+		return rawBlock;
+	}
+	
+	private String loadBlockContent(byte[] blockHash) {
+		List<String> blocks = jdbcTemplate.query("SELECT content from " + BLOCKS_TABLE + " where hash = ? ",
+				new Object[] { blockHash }, new RowMapper<String>() {
 
 					@Override
-					public OpBlock mapRow(ResultSet rs, int rowNum) throws SQLException {
-						OpBlock rawBlock = formatter.parseBlock(rs.getString(1));
-						rawBlock.makeImmutable();
-						return rawBlock;
+					public String mapRow(ResultSet rs, int rowNum) throws SQLException {
+						return rs.getString(1);
 					}
 
 				});
 		if(blocks.size() > 1) {
 			throw new UnsupportedOperationException("Duplicated blocks for the same hash: " + blockHash);
 		}
-		OpBlock rawBlock = blocks.size() == 0 ? null : blocks.get(0);
-		return rawBlock;
+		return blocks.size() == 0 ? null : blocks.get(0);
+	}
+
+	// loads all blocks of superblock with 1 query in order from the newest to the oldest
+	private LinkedList<OpBlock> loadSuperblockBlocks(byte[] superblockHash) {
+		return jdbcTemplate.execute(new ConnectionCallback<LinkedList<OpBlock>>() {
+
+			@Override
+			public LinkedList<OpBlock> doInConnection(Connection con) throws SQLException, DataAccessException {
+				LinkedList<OpBlock> blocks = new LinkedList<OpBlock>();
+				boolean autoCommit = con.getAutoCommit();
+				// postgres uses cursor (fetch size) only inside transaction
+				con.setAutoCommit(false);
+				try (PreparedStatement ps = con.prepareStatement("SELECT content from " + BLOCKS_TABLE
+						+ " where superblock = ? order by blockid desc")) {
+					ps.setFetchSize(BLOCKS_FETCH_SIZE);
+					ps.setBytes(1, superblockHash);
+					try (ResultSet rs = ps.executeQuery()) {
+						while (rs.next()) {
+							OpBlock rawBlock = formatter.parseBlock(rs.getString(1));
+							rawBlock.makeImmutable();
+							blocks.add(rawBlock);
+						}
+					}
+					con.commit();
+				} finally {
+					con.setAutoCommit(autoCommit);
+				}
+				return blocks;
+			}
+		});
 	}
 
 	private OpBlockChain compactTwoDBAccessed(OpBlockChain blc) {
@@ -192,71 +345,205 @@ public class DBConsensusManager {
 				blc.getParent().getSuperBlockHash(), blc.getSuperBlockHash()));
 		SuperblockDbAccess dbSB = dbSuperBlocks.get(blc.getSuperBlockHash());
 		SuperblockDbAccess dbPSB = dbSuperBlocks.get(blc.getParent().getSuperBlockHash());
-		OpBlockChain res = blc;
-		boolean txRollback = false;
+		List<OpBlock> blockHeaders = new ArrayList<OpBlock>();
+		blockHeaders.addAll(blc.getSuperblockHeaders());
+		blockHeaders.addAll(blc.getParent().getSuperblockHeaders());
+		String newSuperblockHash = OpBlockchainRules.calculateSuperblockHash(blockHeaders.size(), blc.getLastBlockRawHash());
+		byte[] sbHashCurrent = SecUtils.getHashBytes(blc.getSuperBlockHash());
+		byte[] sbHashParent = SecUtils.getHashBytes(blc.getParent().getSuperBlockHash());
+		byte[] sbHashNew = SecUtils.getHashBytes(newSuperblockHash);
+		
+		// 1. prepare merged rows under new superblock hash, superblocks are still readable
+		// rows left by previously failed compaction
+		deleteSuperblockRows(sbHashNew);
+		boolean prepared = false;
 		try {
-			dbSB.markAsStale(true);
-			dbPSB.markAsStale(true);
-			List<OpBlock> blockHeaders = new ArrayList<OpBlock>();
-			blockHeaders.addAll(blc.getSuperblockHeaders());
-			blockHeaders.addAll(blc.getParent().getSuperblockHeaders());
-			String newSuperblockHash = OpBlockchainRules.calculateSuperblockHash(blockHeaders.size(), blc.getLastBlockRawHash());
-			byte[] sbHashCurrent = SecUtils.getHashBytes(blc.getSuperBlockHash());
-			byte[] sbHashParent = SecUtils.getHashBytes(blc.getParent().getSuperBlockHash());
-			byte[] sbHashNew = SecUtils.getHashBytes(newSuperblockHash);
-			
-			// Connection conn = dataSource.getConnection();
-			jdbcTemplate.execute("BEGIN");
-			txRollback = true;
-			jdbcTemplate.update("UPDATE " + BLOCKS_TABLE + " set superblock = ? WHERE superblock = ? ", sbHashNew, sbHashCurrent);
-			jdbcTemplate.update("UPDATE " + BLOCKS_TABLE + " set superblock = ? WHERE superblock = ? ", sbHashNew, sbHashParent);
-			
-			jdbcTemplate.update("UPDATE " + OPERATIONS_TABLE + " set superblock = ? WHERE superblock = ? ", sbHashNew, sbHashCurrent);
-			jdbcTemplate.update("UPDATE " + OPERATIONS_TABLE + " set superblock = ? WHERE superblock = ? ", sbHashNew, sbHashParent);
-			
 			String query = "INSERT into " + OP_DELETED_TABLE + "(hash, superblock, shash, mask) "
 					+" SELECT coalesce(r1.hash, r2.hash), ?, r1.shash || r2.shash, r1.mask | r2.mask FROM " 
 					+ " (select * from "+ OP_DELETED_TABLE +" where superblock = ? ) r1 "
 					+ "  FULL OUTER JOIN " 
 					+ " (select * from "+ OP_DELETED_TABLE +" where superblock = ? ) r2 "
 					+ " ON r1.hash = r2.hash";
-			jdbcTemplate.update(query, sbHashNew, sbHashCurrent, sbHashParent);
-			jdbcTemplate.update("DELETE FROM " + OP_DELETED_TABLE + " WHERE superblock = ? ", sbHashParent);
-			jdbcTemplate.update("DELETE FROM " + OP_DELETED_TABLE + " WHERE superblock = ? ", sbHashCurrent);
+			throttleCompaction(jdbcTemplate.update(query, sbHashNew, sbHashCurrent, sbHashParent));
+			insertSuperblockFilter(sbHashNew, FILTER_OPERATIONS, buildOperationsFilter(sbHashNew));
 			
 			for(String objTable : dbSchema.getObjectTables()) {
 				String queryIns = "INSERT INTO " + objTable + "(type, "+ dbSchema.generatePKString(objTable, "p%1$d", ", ") + ", ophash, superblock, sblockid, sorder, content) "
 					+ " SELECT coalesce(r1.type, r2.type), " + dbSchema.generatePKString(objTable, "coalesce(r1.p%1$d, r2.p%1$d)", ", ") + ", " 
 					+ "     coalesce(r1.ophash, r2.ophash), ?, coalesce(r1.sblockid, r2.sblockid), coalesce(r1.sorder, r2.sorder), coalesce(r1.content, r2.content) " 
 					+ " FROM "
-					+ " (select * from " + objTable +" where superblock = ? ) r1 "
+					+ " (select * from " + objTable +" where superblock = ? and type = ? ) r1 "
 					+ "  FULL OUTER JOIN " 
-					+ " (select * from " + objTable +" where superblock = ? ) r2 "
+					+ " (select * from " + objTable +" where superblock = ? and type = ? ) r2 "
 					+ " ON r1.type = r2.type and " + dbSchema.generatePKString(objTable, "r1.p%1$d is not distinct from r2.p%1$d", " and ");
-				jdbcTemplate.update(queryIns, sbHashNew, sbHashCurrent, sbHashParent);
-				jdbcTemplate.update("DELETE FROM " + objTable + " WHERE superblock = ? ", sbHashParent);
-				jdbcTemplate.update("DELETE FROM " + objTable + " WHERE superblock = ? ", sbHashCurrent);
+				List<String> types = jdbcTemplate.queryForList("SELECT distinct type FROM " + objTable + " WHERE superblock = ? or superblock = ?",
+						String.class, sbHashCurrent, sbHashParent);
+				// merge type by type to spread load within io budget
+				for (String type : types) {
+					throttleCompaction(jdbcTemplate.update(queryIns, sbHashNew, sbHashCurrent, type, sbHashParent, type));
+				}
 			}
-
-			res = new OpBlockChain(blc.getParent().getParent(), 
-					blockHeaders, createDbAccess(newSuperblockHash, blockHeaders), blc.getRules());
-			jdbcTemplate.execute("COMMIT");
-			txRollback = true;
+			prepared = true;
 		} finally {
-			if (txRollback) {
-				try {
-					jdbcTemplate.execute("ROLLBACK");
-				} catch (DataAccessException e) {
-					LOGGER.error(String.format("Error while rollback %s ", e.getMessage()), e);
+			if (!prepared) {
+				deleteSuperblockRows(sbHashNew);
+			}
+		}
+		
+		// 2. switch blocks and operations to new superblock in 1 transaction. Compacted superblocks stay readable
+		// (their rows are not changed) till main chain is switched and removeCompactedSuperblocks is called
+		boolean switched = false;
+		try {
+			txTemplate.execute(new TransactionCallbackWithoutResult() {
+
+				@Override
+				protected void doInTransactionWithoutResult(TransactionStatus status) {
+					jdbcTemplate.update("UPDATE " + BLOCKS_TABLE + " set superblock = ? WHERE superblock = ? ", sbHashNew, sbHashCurrent);
+					jdbcTemplate.update("UPDATE " + BLOCKS_TABLE + " set superblock = ? WHERE superblock = ? ", sbHashNew, sbHashParent);
+					
+					jdbcTemplate.update("UPDATE " + OPERATIONS_TABLE + " set superblock = ? WHERE superblock = ? ", sbHashNew, sbHashCurrent);
+					jdbcTemplate.update("UPDATE " + OPERATIONS_TABLE + " set superblock = ? WHERE superblock = ? ", sbHashNew, sbHashParent);
 				}
-				// revert
-				dbSB.markAsStale(false);
-				dbPSB.markAsStale(false);
+			});
+			switched = true;
+		} finally {
+			if (!switched) {
+				deleteSuperblockRows(sbHashNew);
 			}
 		}
+		OpBlockChain res = new OpBlockChain(blc.getParent().getParent(), 
+				blockHeaders, createDbAccess(newSuperblockHash, blockHeaders), blc.getRules());
+		// on compactor thread, so main chain switch doesn't load keys
+		res.setDbObjectKeysFromCompacted(blc);
+		synchronized (compactedSuperblocks) {
+			compactedSuperblocks.add(dbSB);
+			compactedSuperblocks.add(dbPSB);
+		}
 		return res;
 	}
 	
+	/**
+	 * Removes rows of superblocks replaced by compaction, should be called once main chain doesn't reference them.
+	 */
+	public void removeCompactedSuperblocks() {
+		List<SuperblockDbAccess> lst;
+		synchronized (compactedSuperblocks) {
+			lst = new ArrayList<SuperblockDbAccess>(compactedSuperblocks);
+			compactedSuperblocks.clear();
+		}
+		for (SuperblockDbAccess dba : lst) {
+			dba.invalidate();
+			deleteSuperblockRows(dba.sbhash);
+			dbSuperBlocks.remove(dba.superBlockHash, dba);
+		}
+	}
+	
+	private void deleteSuperblockRows(byte[] sbhash) {
+		jdbcTemplate.update("DELETE FROM " + SUPERBLOCK_FILTERS_TABLE + " WHERE superblock = ? ", sbhash);
+		throttleCompaction(jdbcTemplate.update("DELETE FROM " + OP_DELETED_TABLE + " WHERE superblock = ? ", sbhash));
+		for (String objTable : dbSchema.getObjectTables()) {
+			throttleCompaction(jdbcTemplate.update("DELETE FROM " + objTable + " WHERE superblock = ? ", sbhash));
+		}
+	}
+	
+	private BloomFilter buildOperationsFilter(byte[] sbhash) {
+		List<byte[]> hashes = jdbcTemplate.queryForList("SELECT hash FROM " + OP_DELETED_TABLE + " WHERE superblock = ? ",
+				byte[].class, sbhash);
+		BloomFilter filter = BloomFilter.create(hashes.size());
+		for (byte[] h : hashes) {
+			filter.put(h);
+		}
+		return filter;
+	}
+	
+	private void insertSuperblockFilter(byte[] sbhash, String type, BloomFilter filter) {
+		jdbcTemplate.update("INSERT INTO " + SUPERBLOCK_FILTERS_TABLE + "(superblock, type, content) VALUES(?, ?, ?)",
+				sbhash, type, filter.toBytes());
+	}
+	
+	private BloomFilter loadSuperblockFilter(byte[] sbhash, String type) {
+		List<byte[]> res = jdbcTemplate.queryForList("SELECT content FROM " + SUPERBLOCK_FILTERS_TABLE
+				+ " WHERE superblock = ? and type = ? ", byte[].class, sbhash, type);
+		return res.isEmpty() ? null : BloomFilter.fromBytes(res.get(0));
+	}
+	
+	private void throttleCompaction(int rows) {
+		if (compactIoBudget > 0 && rows > 0) {
+			try {
+				Thread.sleep(rows * 1000L / compactIoBudget);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+	
+	// bounded LRU cache of parsed objects / operations of 1 superblock, entries are immutable
+	private class SuperblockCache {
+		private final LinkedHashMap<Object, CacheEntry> entries = new LinkedHashMap<Object, CacheEntry>(16, 0.75f, true);
+		private final AtomicLong hits;
+		private final AtomicLong misses;
+		private final AtomicLong evictions;
+		private long bytes;
+		
+		SuperblockCache() {
+			this(cacheHits, cacheMisses, cacheEvictions);
+		}
+		
+		SuperblockCache(AtomicLong hits, AtomicLong misses, AtomicLong evictions) {
+			this.hits = hits;
+			this.misses = misses;
+			this.evictions = evictions;
+		}
+		
+		synchronized Object get(Object key) {
+			CacheEntry e = entries.get(key);
+			if (e == null) {
+				misses.incrementAndGet();
+				return null;
+			}
+			hits.incrementAndGet();
+			return e.value;
+		}
+		
+		synchronized void put(Object key, Object value, long size) {
+			CacheEntry prev = entries.put(key, new CacheEntry(value, size));
+			if (prev != null) {
+				bytes -= prev.size;
+			}
+			bytes += size;
+			Iterator<CacheEntry> it = entries.values().iterator();
+			while ((entries.size() > getMaxSize() || bytes > getMaxBytes()) && it.hasNext()) {
+				CacheEntry e = it.next();
+				it.remove();
+				bytes -= e.size;
+				evictions.incrementAndGet();
+			}
+		}
+		
+		synchronized void clear() {
+			entries.clear();
+			bytes = 0;
+		}
+		
+		int getMaxSize() {
+			return superblockCacheSize;
+		}
+		
+		long getMaxBytes() {
+			return superblockCacheBytes;
+		}
+	}
+	
+	private static class CacheEntry {
+		final Object value;
+		final long size;
+		
+		CacheEntry(Object value, long size) {
+			this.value = value;
+			this.size = size;
+		}
+	}
+	
 	protected class SuperblockDbAccess implements BlockDbAccessInterface {
 
 		protected final String superBlockHash;
@@ -265,6 +552,8 @@ public class DBConsensusManager {
 		private final ReadLock readLock;
 		private volatile boolean staleAccess;
 		private final byte[] sbhash;
+		private final SuperblockCache cache = new SuperblockCache();
+		private volatile BloomFilter opsFilter;
 		
 		public SuperblockDbAccess(String superBlockHash, Collection<OpBlock> blockHeaders) {
 			this.superBlockHash = superBlockHash;
@@ -275,11 +564,25 @@ public class DBConsensusManager {
 			dbSuperBlocks.put(superBlockHash, this);
 		}
 		
+		// superblock rows are deleted: cached objects, operations and filters are dropped
+		void invalidate() {
+			WriteLock lock = readWriteLock.writeLock();
+			lock.lock();
+			try {
+				staleAccess = true;
+				cache.clear();
+				opsFilter = null;
+			} finally {
+				lock.unlock();
+			}
+		}
+		
 		public boolean markAsStale(boolean stale) {
 			WriteLock lock = readWriteLock.writeLock();
 			lock.lock();
 			try {
 				staleAccess = stale;
+				cache.clear();
 				return true;
 			} finally {
 				lock.unlock();
@@ -293,18 +596,19 @@ public class DBConsensusManager {
 				if(staleAccess) {
 					throw new UnsupportedOperationException();
 				}
+				final SimpleImmutableEntry<String, CompoundKey> ck = new SimpleImmutableEntry<String, CompoundKey>(type, k);
+				OpObject cached = (OpObject) cache.get(ck);
+				if (cached != null) {
+					return cached;
+				}
 				int sz = k.size();
 				Object[] o = new Object[sz + 2];
 				o[0] = sbhash;
 				o[1] = type;
 				k.toArray(o, 2);
 				String table = dbSchema.getTableByType(type);
-				if (sz > dbSchema.getKeySizeByType(type)) {
-					throw new UnsupportedOperationException();
-				}
 				String s = "select content, type, ophash from " + table +  
-							" where superblock = ? and type = ? and " +
-						dbSchema.generatePKString(table, "p%1$d = ?", " and ", sz);
+							" where superblock = ? and type = ? and " + getExactKeyCondition(table, type, sz);
 				return jdbcTemplate.query(s, o, new ResultSetExtractor<OpObject>() {
 
 					@Override
@@ -312,8 +616,11 @@ public class DBConsensusManager {
 						if(!rs.next()) {
 							return null;
 						}
-						OpObject obj = formatter.parseObject(rs.getString(1));
+						String content = rs.getString(1);
+						OpObject obj = formatter.parseObject(content);
 						obj.setParentOp(rs.getString(2), SecUtils.hexify(rs.getBytes(3)));
+						obj.makeImmutable();
+						cache.put(ck, obj, content.length());
 						return obj;
 					}
 				});
@@ -322,31 +629,175 @@ public class DBConsensusManager {
 			}
 		}
 
+		@Override
+		public Map<CompoundKey, OpObject> getObjectsByIds(String type, Collection<CompoundKey> keys) {
+			readLock.lock();
+			try {
+				if(staleAccess) {
+					throw new UnsupportedOperationException();
+				}
+				Map<CompoundKey, OpObject> res = new HashMap<CompoundKey, OpObject>();
+				final String table = dbSchema.getTableByType(type);
+				final int keySize = dbSchema.getKeySizeByType(type);
+				Map<Integer, List<CompoundKey>> keysBySize = new TreeMap<Integer, List<CompoundKey>>();
+				for (CompoundKey k : keys) {
+					if (k.size() > keySize) {
+						throw new UnsupportedOperationException();
+					}
+					OpObject cached = (OpObject) cache.get(new SimpleImmutableEntry<String, CompoundKey>(type, k));
+					if (cached != null) {
+						res.put(k, cached);
+						continue;
+					}
+					List<CompoundKey> lst = keysBySize.get(k.size());
+					if (lst == null) {
+						lst = new ArrayList<CompoundKey>();
+						keysBySize.put(k.size(), lst);
+					}
+					lst.add(k);
+				}
+				// 1 query per key size (normally all keys of the same type have same size)
+				for (Entry<Integer, List<CompoundKey>> e : keysBySize.entrySet()) {
+					final int sz = e.getKey();
+					final String[][] pkeys = new String[sz][e.getValue().size()];
+					for (int i = 0; i < e.getValue().size(); i++) {
+						Object[] ks = e.getValue().get(i).toArray();
+						for (int j = 0; j < sz; j++) {
+							pkeys[j][i] = (String) ks[j];
+						}
+					}
+					String cond;
+					if (sz == 1) {
+						cond = "p1 = ANY(?)";
+					} else {
+						cond = "(" + dbSchema.generatePKString(table, "p%1$d", ", ", sz) + ") IN (select * from unnest("
+								+ dbSchema.generatePKString(table, "?", ", ", sz) + "))";
+					}
+					for (int j = sz + 1; j <= keySize; j++) {
+						cond += " and p" + j + " is null";
+					}
+					final String sql = "select content, type, ophash, " + dbSchema.generatePKString(table, "p%1$d", ", ")
+							+ " from " + table + " where superblock = ? and type = ? and " + cond;
+					jdbcTemplate.query(new PreparedStatementCreator() {
+
+						@Override
+						public PreparedStatement createPreparedStatement(Connection con) throws SQLException {
+							PreparedStatement pt = con.prepareStatement(sql);
+							pt.setBytes(1, sbhash);
+							pt.setString(2, type);
+							for (int j = 0; j < sz; j++) {
+								pt.setArray(3 + j, con.createArrayOf("text", pkeys[j]));
+							}
+							return pt;
+						}
+					}, new RowCallbackHandler() {
+						List<String> ls = new ArrayList<String>(5);
+
+						@Override
+						public void processRow(ResultSet rs) throws SQLException {
+							ls.clear();
+							for (int i = 0; i < keySize; i++) {
+								ls.add(rs.getString(i + 4));
+							}
+							String content = rs.getString(1);
+							OpObject obj = formatter.parseObject(content);
+							obj.setParentOp(rs.getString(2), SecUtils.hexify(rs.getBytes(3)));
+							obj.makeImmutable();
+							CompoundKey k = new CompoundKey(0, ls);
+							cache.put(new SimpleImmutableEntry<String, CompoundKey>(type, k), obj, content.length());
+							res.put(k, obj);
+						}
+					});
+				}
+				return res;
+			} finally {
+				readLock.unlock();
+			}
+		}
+
+		@Override
+		public Collection<CompoundKey> getObjectKeys(String type) {
+			readLock.lock();
+			try {
+				if(staleAccess) {
+					throw new UnsupportedOperationException();
+				}
+				String objTable = dbSchema.getTableByType(type);
+				final int keySize = dbSchema.getKeySizeByType(type);
+				String sql = "select " + dbSchema.generatePKString(objTable, "p%1$d", ", ")
+						+ " from " + objTable + " where superblock = ? and type = ? ";
+				List<CompoundKey> res = new ArrayList<CompoundKey>();
+				jdbcTemplate.query(sql, new Object[] { sbhash, type }, new RowCallbackHandler() {
+					List<String> ls = new ArrayList<String>(5);
+					@Override
+					public void processRow(ResultSet rs) throws SQLException {
+						ls.clear();
+						for(int i = 0; i < keySize; i++) {
+							ls.add(rs.getString(i + 1));
+						}
+						res.add(new CompoundKey(0, ls));
+					}
+				});
+				return res;
+			} finally {
+				readLock.unlock();
+			}
+		}
 
 		@Override
 		public Map<CompoundKey, OpObject> getAllObjects(String type, ObjectsSearchRequest request) {
-			int limit = request.limit - request.result.size();
-			if(limit <= 0 && request.limit >= 0) {
-				return Collections.emptyMap();
+			Map<CompoundKey, OpObject> res = new LinkedHashMap<CompoundKey, OpObject>();
+			int limit = request.limit - request.getResultSize();
+			if(limit > 0 || request.limit < 0) {
+				fetchObjects(type, null, Math.max(limit, 0), false, res, false);
+			}
+			return res;
+		}
+		
+		@Override
+		public Map<CompoundKey, String> getAllObjectsJson(String type, ObjectsSearchRequest request) {
+			Map<CompoundKey, String> res = new LinkedHashMap<CompoundKey, String>();
+			int limit = request.limit - request.getResultSize();
+			if(limit > 0 || request.limit < 0) {
+				fetchObjects(type, null, Math.max(limit, 0), false, res, true);
 			}
+			return res;
+		}
+		
+		@Override
+		public Map<CompoundKey, Object> getObjectsPage(String type, CompoundKey after, int limit, boolean json) {
+			Map<CompoundKey, Object> res = new LinkedHashMap<CompoundKey, Object>();
+			fetchObjects(type, after, limit, true, res, json);
+			return res;
+		}
+		
+		@SuppressWarnings("unchecked")
+		private <T> void fetchObjects(String type, CompoundKey after, int limit, boolean ordered,
+				final Map<CompoundKey, T> res, final boolean json) {
 			readLock.lock();
 			try {
 				if(staleAccess) {
 					throw new UnsupportedOperationException();
 				}
-				Object[] o = new Object[2];
-				o[0] = sbhash;
-				o[1] = type;
+				List<Object> args = new ArrayList<Object>();
+				args.add(sbhash);
+				args.add(type);
 				
 				String objTable = dbSchema.getTableByType(type);
 				final int keySize = dbSchema.getKeySizeByType(type);
 				String sql = "select content, type, ophash, " + dbSchema.generatePKString(objTable, "p%1$d", ", ")
 						+ "  from " + objTable + " where superblock = ? and type = ? ";
+				if(after != null && !after.isEmpty()) {
+					sql = sql + " and " + getKeysetCondition(after, keySize, args);
+				}
+				if(ordered) {
+					// "C" collation matches CompoundKey.compareTo, so pages of superblocks could be merged
+					sql = sql + " order by " + dbSchema.getKeysetOrder(objTable);
+				}
 				if(limit > 0) {
 					sql = sql + " limit " + limit;
 				}
-				Map<CompoundKey, OpObject> res = new LinkedHashMap<CompoundKey, OpObject>();
-				jdbcTemplate.query(sql, o, new RowCallbackHandler() {
+				jdbcTemplate.query(sql, args.toArray(), new RowCallbackHandler() {
 					List<String> ls = new ArrayList<String>(5);
 					@Override
 					public void processRow(ResultSet rs) throws SQLException {
@@ -355,77 +806,244 @@ public class DBConsensusManager {
 							ls.add(rs.getString(i + 4));
 						}
 						CompoundKey k = new CompoundKey(0, ls);
-						OpObject obj = formatter.parseObject(rs.getString(1));
-						obj.setParentOp(rs.getString(2), SecUtils.hexify(rs.getBytes(3)));
-						res.put(k, obj);
+						if (json) {
+							// stored json is passed as is, parent op is the only addition to full output
+							res.put(k, (T) formatter.fullObjectToJson(rs.getString(1), rs.getString(2),
+									SecUtils.hexify(rs.getBytes(3))));
+						} else {
+							OpObject obj = formatter.parseObject(rs.getString(1));
+							obj.setParentOp(rs.getString(2), SecUtils.hexify(rs.getBytes(3)));
+							res.put(k, (T) obj);
+						}
 					}
 				});
-				return res;
 			} finally {
 				readLock.unlock();
 			}
 		}
+		
+		// key columns after key size are null, so shorter key doesn't match longer keys with the same prefix
+		private String getExactKeyCondition(String table, String type, int sz) {
+			int keySize = dbSchema.getKeySizeByType(type);
+			if (sz > keySize) {
+				throw new UnsupportedOperationException();
+			}
+			String cond = dbSchema.generatePKString(table, "p%1$d = ?", " and ", sz);
+			for (int j = sz + 1; j <= keySize; j++) {
+				cond += " and p" + j + " is null";
+			}
+			return cond;
+		}
+		
+		// rows with key greater than given key: p1 >= a1 and (p1 > a1 or (p1 = a1 and (p2 > a2 or ...)))
+		// index scan can't start from OR condition, so leading p1 >= a1 bound is where keyset index scan starts
+		private String getKeysetCondition(CompoundKey after, int keySize, List<Object> args) {
+			Object[] parts = after.toArray();
+			if (parts.length > keySize) {
+				throw new UnsupportedOperationException();
+			}
+			int argsStart = args.size();
+			StringBuilder cond = new StringBuilder();
+			int brackets = 0;
+			for (int i = 0; i < parts.length; i++) {
+				String p = "p" + (i + 1);
+				if (i == keySize - 1) {
+					cond.append(p).append(" COLLATE \"C\" > ?");
+					args.add(parts[i]);
+				} else {
+					cond.append("(").append(p).append(" COLLATE \"C\" > ? or (").append(p).append(" COLLATE \"C\" = ? and ");
+					args.add(parts[i]);
+					args.add(parts[i]);
+					brackets++;
+				}
+			}
+			if (parts.length < keySize) {
+				// longer key with same prefix goes after
+				cond.append("p").append(parts.length + 1).append(" is not null");
+			}
+			for (int i = 0; i < brackets; i++) {
+				cond.append("))");
+			}
+			if (brackets > 0) {
+				cond.insert(0, "p1 COLLATE \"C\" >= ? and ");
+				args.add(argsStart, parts[0]);
+			}
+			return cond.toString();
+		}
+		
+		@Override
+		public String getObjectJsonById(String type, CompoundKey k) {
+			readLock.lock();
+			try {
+				if(staleAccess) {
+					throw new UnsupportedOperationException();
+				}
+				OpObject cached = (OpObject) cache.get(new SimpleImmutableEntry<String, CompoundKey>(type, k));
+				if (cached != null) {
+					return formatter.fullObjectToJson(cached);
+				}
+				int sz = k.size();
+				Object[] o = new Object[sz + 2];
+				o[0] = sbhash;
+				o[1] = type;
+				k.toArray(o, 2);
+				String table = dbSchema.getTableByType(type);
+				String s = "select content, type, ophash from " + table +  
+							" where superblock = ? and type = ? and " + getExactKeyCondition(table, type, sz);
+				return jdbcTemplate.query(s, o, new ResultSetExtractor<String>() {
+
+					@Override
+					public String extractData(ResultSet rs) throws SQLException, DataAccessException {
+						if(!rs.next()) {
+							return null;
+						}
+						return formatter.fullObjectToJson(rs.getString(1), rs.getString(2), SecUtils.hexify(rs.getBytes(3)));
+					}
+				});
+			} finally {
+				readLock.unlock();
+			}
+		}
+
+		// filter is built only on save / compaction, superblocks saved before are read without filter
+		private boolean mightContainOperation(byte[] hash) {
+			BloomFilter f = opsFilter;
+			if (f == null) {
+				f = loadSuperblockFilter(sbhash, FILTER_OPERATIONS);
+				opsFilter = f = (f == null ? NO_FILTER : f);
+			}
+			return f == NO_FILTER || f.mightContain(hash);
+		}
 
 		@Override
-		public OperationDeleteInfo getOperationInfo(String rawHash) {
+		public OperationDeleteInfo getOperationInfo(OpHash rawHash) {
 			readLock.lock();
 			try {
 				if(staleAccess) {
 					throw new UnsupportedOperationException();
 				}
+				OperationDeleteInfo cached = (OperationDeleteInfo) cache.get(rawHash);
+				if (cached != null) {
+					return cached;
+				}
+				byte[] hash = rawHash.getBytes();
+				if (!mightContainOperation(hash)) {
+					return null;
+				}
 				Object[] o = new Object[2];
 				o[0] = sbhash;
-				o[1] = SecUtils.getHashBytes(rawHash);
+				o[1] = hash;
 				String sql = "select d.mask, d.shash, o.content from " + OP_DELETED_TABLE + " d join " + OPERATIONS_TABLE + " o on o.hash = d.hash "
 						+ " where d.superblock = ? and d.hash = ? ";
-				final OperationDeleteInfo od = new OperationDeleteInfo();
+				final OperationDeleteInfo[] od = new OperationDeleteInfo[1];
 				jdbcTemplate.query(sql, o, new RowCallbackHandler(){
 
 					@Override
 					public void processRow(ResultSet rs) throws SQLException {
-						long bigInt = rs.getLong(1);
-						od.create = bigInt % 2 == 0;
-						BitSet bs = BitSet.valueOf(new long[]{bigInt >> 1});
-						Array ar = rs.getArray(2);
-						PGobject[] ls = (PGobject[]) (ar == null ? null : ar.getArray());
-						if(ls != null) {
-							od.deletedOpHashes = new ArrayList<String>();
-							for(int k = 0; k < ls.length; k++) {
-								System.out.println("TODO VALIDATION hash dex format !!! : " + ls[k].getValue());
-								od.deletedOpHashes.add(ls[k].getValue());
-							}
-						}
-						od.deletedObjects = new boolean[bs.length()];
-						for(int i = 0; i < od.deletedObjects.length; i++) {
-							od.deletedObjects[i] = bs.get(i);
-						}
-						od.op = formatter.parseOperation(rs.getString(3));
+						od[0] = readOperationDeleteInfo(rs);
+						cache.put(rawHash, od[0], rs.getString(3).length());
 					}
 				});
-				if(od.op == null) {
-					return null;
+				return od[0];
+			} finally {
+				readLock.unlock();
+			}
+		}
+		
+		@Override
+		public Map<OpHash, OperationDeleteInfo> getOperationInfos(Collection<OpHash> rawHashes) {
+			readLock.lock();
+			try {
+				if(staleAccess) {
+					throw new UnsupportedOperationException();
+				}
+				Map<OpHash, OperationDeleteInfo> res = new HashMap<OpHash, OperationDeleteInfo>();
+				List<String> hashes = new ArrayList<String>();
+				for (OpHash h : rawHashes) {
+					OperationDeleteInfo cached = (OperationDeleteInfo) cache.get(h);
+					if (cached != null) {
+						res.put(h, cached);
+					} else if (mightContainOperation(h.getBytes())) {
+						hashes.add("\\x" + h.getHex());
+					}
 				}
-				return od;
+				if (hashes.isEmpty()) {
+					return res;
+				}
+				final String sql = "select d.mask, d.shash, o.content, d.hash from " + OP_DELETED_TABLE + " d join " + OPERATIONS_TABLE + " o on o.hash = d.hash "
+						+ " where d.superblock = ? and d.hash = ANY(?) ";
+				jdbcTemplate.query(new PreparedStatementCreator() {
+
+					@Override
+					public PreparedStatement createPreparedStatement(Connection con) throws SQLException {
+						PreparedStatement pt = con.prepareStatement(sql);
+						pt.setBytes(1, sbhash);
+						pt.setArray(2, con.createArrayOf("bytea", hashes.toArray(new String[hashes.size()])));
+						return pt;
+					}
+				}, new RowCallbackHandler() {
+
+					@Override
+					public void processRow(ResultSet rs) throws SQLException {
+						OpHash rawHash = OpHash.fromBytes(rs.getBytes(4));
+						OperationDeleteInfo od = readOperationDeleteInfo(rs);
+						cache.put(rawHash, od, rs.getString(3).length());
+						res.put(rawHash, od);
+					}
+				});
+				return res;
 			} finally {
 				readLock.unlock();
 			}
 		}
+		
+		private OperationDeleteInfo readOperationDeleteInfo(ResultSet rs) throws SQLException {
+			final OperationDeleteInfo od = new OperationDeleteInfo();
+			long bigInt = rs.getLong(1);
+			od.create = bigInt % 2 == 0;
+			BitSet bs = BitSet.valueOf(new long[]{bigInt >> 1});
+			Array ar = rs.getArray(2);
+			PGobject[] ls = (PGobject[]) (ar == null ? null : ar.getArray());
+			if(ls != null) {
+				od.deletedOpHashes = new ArrayList<String>();
+				for(int k = 0; k < ls.length; k++) {
+					System.out.println("TODO VALIDATION hash dex format !!! : " + ls[k].getValue());
+					od.deletedOpHashes.add(ls[k].getValue());
+				}
+			}
+			od.deletedObjects = new boolean[bs.length()];
+			for(int i = 0; i < od.deletedObjects.length; i++) {
+				od.deletedObjects[i] = bs.get(i);
+			}
+			od.op = formatter.parseOperation(rs.getString(3));
+			od.op.makeImmutable();
+			return od;
+		}
 
 		@Override
 		public Deque<OpBlock> getAllBlocks(Collection<OpBlock> blockHeaders) {
-			boolean isSuperblockReferenceActive = false;
+			LinkedList<OpBlock> blocks = null;
 			readLock.lock();
 			try {
-				isSuperblockReferenceActive = !staleAccess;
+				if (!staleAccess) {
+					blocks = loadSuperblockBlocks(sbhash);
+				}
 			} finally {
 				readLock.unlock();
 			}
-			if (isSuperblockReferenceActive) {
-				// to do faster to load by superblock reference, so it could be 1 sql
+			if (blocks != null && blocks.size() == blockHeaders.size()) {
+				Iterator<OpBlock> it = blocks.iterator();
+				boolean match = true;
+				for (OpBlock b : blockHeaders) {
+					match = match && OUtils.equals(b.getRawHash(), it.next().getRawHash());
+				}
+				if (match) {
+					return blocks;
+				}
 			}
-			LinkedList<OpBlock> blocks = new LinkedList<OpBlock>();
+			blocks = new LinkedList<OpBlock>();
 			for (OpBlock b : blockHeaders) {
-				OpBlock lb = loadBlock(b.getRawHash());
+				OpBlock lb = loadBlock(b.getOpHash().getBytes());
 				if (lb == null) {
 					throw new IllegalStateException(String.format("Couldn't load '%s' block from db", b.getRawHash()));
 				}
@@ -435,8 +1053,8 @@ public class DBConsensusManager {
 		}
 
 		@Override
-		public OpBlock getBlockByHash(String rawHash) {
-			return loadBlock(rawHash);
+		public OpBlock getBlockByHash(OpHash rawHash) {
+			return loadBlock(rawHash.getBytes());
 		}
 
 		
@@ -544,6 +1162,16 @@ public class DBConsensusManager {
 
 
 
+	/**
+	 * Block must be inserted in db, so its body could be loaded again
+	 */
+	public boolean evictBlockBody(OpBlockChain blc, OpBlock block) {
+		if (!evictBlockBodies) {
+			return false;
+		}
+		return blc.evictFullBlock(block.getRawHash(), blockLoader);
+	}
+
 	public void insertBlock(OpBlock opBlock) {
 		OpBlock blockheader = new OpBlock(opBlock, false, true);
 		PGobject blockObj = new PGobject();
@@ -570,7 +1198,7 @@ public class DBConsensusManager {
 					opBlock.getBlockId(), blockHeaderObj, blockObj);
 			for (OpOperation o : opBlock.getOperations()) {
 				int upd = jdbcTemplate.update("UPDATE " + OPERATIONS_TABLE + " set blocks = blocks || ? where hash = ?", blockHash,
-						SecUtils.getHashBytes(o.getHash()));
+						o.getOpHash().getBytes());
 				if (upd == 0) {
 					throw new IllegalArgumentException(
 							String.format("Can't create block '%s' cause op '%s' doesn't exist", opBlock.getRawHash(), o.getHash()));
@@ -633,122 +1261,119 @@ public class DBConsensusManager {
 		LOGGER.info(String.format("Save superblock %s ", superBlockHashStr));
 		byte[] superBlockHash = SecUtils.getHashBytes(blc.getSuperBlockHash());
 		Collection<OpBlock> blockHeaders = blc.getSuperblockHeaders();
-		OpBlockChain dbchain = null;
-		
-		jdbcTemplate.execute("BEGIN");
-		try {
-			Map<String, Long> opsId = new HashMap<String, Long>(); 
-			for(OpBlock block : blc.getSuperblockFullBlocks()) {
-				byte[] blHash = SecUtils.getHashBytes(block.getFullHash());
-				// assign parent hash only for last block
-				// String blockRawHash = SecUtils.hexify(blHash);
-				// LOGGER.info(String.format("Update block %s to superblock %s ", o.getHash(), superBlockHash));
-				jdbcTemplate.update("UPDATE " + BLOCKS_TABLE + " set superblock = ? where hash = ?", superBlockHash, blHash);
-				int order = 0;
-				int bid = block.getBlockId();
-				for(OpOperation op : block.getOperations()) {
-					long l = OUtils.combine(bid, order);
-					opsId.put(op.getRawHash(), l);
-					jdbcTemplate.update("UPDATE " + OPERATIONS_TABLE + " set superblock = ?, sblockid = ?, sorder = ? where hash = ?", 
-							superBlockHash, bid, order, SecUtils.getHashBytes(op.getRawHash()));
-					order ++;
-				}
-			}
-			Collection<OperationDeleteInfo> delInfo = blc.getSuperblockDeleteInfo();
-			for(OperationDeleteInfo oi : delInfo) {
-				byte[] opHash = SecUtils.getHashBytes(oi.op.getRawHash());
-				BitSet bs = new BitSet();
-				if(oi.create) {
-					bs.set(0);
-				}
-				if(oi.deletedObjects != null) {
-					if(oi.deletedObjects.length > 62) {
-						throw new UnsupportedOperationException(String.format("Deleting %d objects is not supported", oi.deletedObjects.length));
-					}
-					for(int i = 0; i < oi.deletedObjects.length; i++) {
-						if(oi.deletedObjects[i]){
-							bs.set(i + 1);
-						}
+		return txTemplate.execute(new TransactionCallback<OpBlockChain>() {
+
+			@Override
+			public OpBlockChain doInTransaction(TransactionStatus status) {
+				Map<String, Long> opsId = new HashMap<String, Long>(); 
+				List<Object[]> blocksArgs = new ArrayList<Object[]>();
+				List<Object[]> opsArgs = new ArrayList<Object[]>();
+				for(OpBlock block : blc.getSuperblockFullBlocks()) {
+					byte[] blHash = block.getOpHash().getBytes();
+					// assign parent hash only for last block
+					blocksArgs.add(new Object[] { superBlockHash, blHash });
+					int order = 0;
+					int bid = block.getBlockId();
+					for(OpOperation op : block.getOperations()) {
+						long l = OUtils.combine(bid, order);
+						opsId.put(op.getRawHash(), l);
+						opsArgs.add(new Object[] { superBlockHash, bid, order, op.getOpHash().getBytes() });
+						order ++;
 					}
 				}
-				final long[] ls = bs.toLongArray();
-				final String[] sobjs = new String[oi.deletedOpHashes == null ? 0 : oi.deletedOpHashes.size()];
-				for (int i = 0; i < sobjs.length; i++) {
-					// sobjs[i] = SecUtils.getHashBytes(oi.deletedOpHashes.get(i));
-					sobjs[i] = "\\x" + oi.deletedOpHashes.get(i);
+				batchUpdate(jdbcTemplate, "UPDATE " + BLOCKS_TABLE + " set superblock = ? where hash = ?", blocksArgs, batchSize);
+				batchUpdate(jdbcTemplate, "UPDATE " + OPERATIONS_TABLE + " set superblock = ?, sblockid = ?, sorder = ? where hash = ?", 
+						opsArgs, batchSize);
+			
+				Collection<OperationDeleteInfo> delInfo = blc.getSuperblockDeleteInfo();
+				BloomFilter opsFilter = BloomFilter.create(delInfo.size());
+				for (OperationDeleteInfo oi : delInfo) {
+					opsFilter.put(oi.op.getOpHash().getBytes());
 				}
-				jdbcTemplate.update(new PreparedStatementCreator() {
-					
+				insertSuperblockFilter(superBlockHash, FILTER_OPERATIONS, opsFilter);
+				jdbcTemplate.batchUpdate("INSERT INTO " + OP_DELETED_TABLE + "(hash,superblock,shash,mask) VALUES(?,?,?,?)", 
+						delInfo, batchSize, new ParameterizedPreparedStatementSetter<OperationDeleteInfo>() {
+
 					@Override
-					public PreparedStatement createPreparedStatement(Connection con) throws SQLException {
-						Array refs = con.createArrayOf("bytea", sobjs);
-						PreparedStatement pt = con.prepareStatement("INSERT INTO " + OP_DELETED_TABLE + "(hash,superblock,shash,mask)"
-											+ " VALUES(?,?,?,?)");
+					public void setValues(PreparedStatement pt, OperationDeleteInfo oi) throws SQLException {
+						byte[] opHash = oi.op.getOpHash().getBytes();
+						BitSet bs = new BitSet();
+						if(oi.create) {
+							bs.set(0);
+						}
+						if(oi.deletedObjects != null) {
+							if(oi.deletedObjects.length > 62) {
+								throw new UnsupportedOperationException(String.format("Deleting %d objects is not supported", oi.deletedObjects.length));
+							}
+							for(int i = 0; i < oi.deletedObjects.length; i++) {
+								if(oi.deletedObjects[i]){
+									bs.set(i + 1);
+								}
+							}
+						}
+						long[] ls = bs.toLongArray();
+						String[] sobjs = new String[oi.deletedOpHashes == null ? 0 : oi.deletedOpHashes.size()];
+						for (int i = 0; i < sobjs.length; i++) {
+							sobjs[i] = "\\x" + oi.deletedOpHashes.get(i);
+						}
 						pt.setBytes(1, opHash);
 						pt.setBytes(2, superBlockHash);
-						pt.setArray(3, refs);
+						pt.setArray(3, pt.getConnection().createArrayOf("bytea", sobjs));
 						pt.setLong(4, ls[0]);
-						return pt;
 					}
 				});
-			}
 			
-			Map<String, Map<CompoundKey, OpObject>> so = blc.getSuperblockObjects();
-			for (String type : so.keySet()) {
-				Map<CompoundKey, OpObject> objects = so.get(type);
-				Iterator<Entry<CompoundKey, OpObject>> it = objects.entrySet().iterator();
-				while (it.hasNext()) {
-					Entry<CompoundKey, OpObject> e = it.next();
-					CompoundKey pkey = e.getKey();
-					OpObject obj = e.getValue();
-					long l = opsId.get(obj.getParentHash());
-					int sblockid = OUtils.first(l);
-					int sorder = OUtils.second(l);
-					dbSchema.insertObjIntoTable(type, pkey, obj, superBlockHash, sblockid, sorder, jdbcTemplate);
-				}
-			}
-			dbchain = new OpBlockChain(blc.getParent(), blockHeaders, createDbAccess(superBlockHashStr, blockHeaders),
-					blc.getRules());
-			jdbcTemplate.execute("COMMIT");
-		} finally {
-			if (dbchain == null) {
-				try {
-					jdbcTemplate.execute("ROLLBACK");
-				} catch (DataAccessException e) {
-					LOGGER.error(String.format("Error while rollback %s ", e.getMessage()), e);
+				Map<String, Map<CompoundKey, OpObject>> so = blc.getSuperblockObjects();
+				Map<String, Collection<CompoundKey>> objKeys = new HashMap<String, Collection<CompoundKey>>();
+				for (String type : so.keySet()) {
+					Map<CompoundKey, OpObject> objects = so.get(type);
+					objKeys.put(type, objects.keySet());
+					List<Object[]> objArgs = new ArrayList<Object[]>(objects.size());
+					Iterator<Entry<CompoundKey, OpObject>> it = objects.entrySet().iterator();
+					while (it.hasNext()) {
+						Entry<CompoundKey, OpObject> e = it.next();
+						CompoundKey pkey = e.getKey();
+						OpObject obj = e.getValue();
+						long l = opsId.get(obj.getParentHash());
+						int sblockid = OUtils.first(l);
+						int sorder = OUtils.second(l);
+						objArgs.add(dbSchema.getObjInsertArgs(type, pkey, obj, superBlockHash, sblockid, sorder));
+					}
+					dbSchema.insertObjsIntoTable(type, objArgs, batchSize, jdbcTemplate);
 				}
+				OpBlockChain res = new OpBlockChain(blc.getParent(), blockHeaders,
+						createDbAccess(superBlockHashStr, blockHeaders), blc.getRules());
+				res.setDbObjectKeys(objKeys);
+				return res;
 			}
-		}
-		return dbchain;
+		});
 	}
 	
-	public synchronized OpBlockChain compact(int prevSize, OpBlockChain blc, boolean db) {
+	public synchronized OpBlockChain compact(int prevSize, OpBlockChain blc) {
 		if(blc == null || blc.isNullBlock() || blc.getParent().isNullBlock()) {
 			return blc;
 		}
 		OpBlockChain compactedParent = null;
 		if(blc.isDbAccessed() == blc.getParent().isDbAccessed()) {
-			compactedParent = compact(blc.getSuperblockSize(), blc.getParent(), db);
+			compactedParent = compact(blc.getSuperblockSize(), blc.getParent());
 			// only 1 compact at a time
 			boolean compact = compactedParent == blc.getParent();
-			compact = compact && ((double) blc.getSuperblockSize() + compactCoefficient * prevSize) > ((double)blc.getParent().getSuperblockSize()) ;
+			compact = compact && isCompactNeeded(prevSize, blc);
 			if(compact) {
+				if(blc.isDbAccessed()) {
+					// db superblocks are compacted by background compactor (compactDbSuperblocks)
+					return blc;
+				}
 				LOGGER.info("Chain to compact: ");
 				printBlockChain(blc);
 				// See @SimulateSuperblockCompactSequences
-				if(blc.isDbAccessed() && db) {
-					// here we need to lock all db access of 2 blocks and run update in 1 transaction
-					return compactTwoDBAccessed(blc);
-				} else {
-					LOGGER.info(String.format("Compact runtime superblock '%s' into  superblock '%s' ", blc.getParent().getSuperBlockHash(), blc.getSuperBlockHash()));
-					blc = new OpBlockChain(blc,  blc.getParent(), blc.getRules());
-					return blc;
-				}
-				
+				LOGGER.info(String.format("Compact runtime superblock '%s' into  superblock '%s' ", blc.getParent().getSuperBlockHash(), blc.getSuperBlockHash()));
+				blc = new OpBlockChain(blc,  blc.getParent(), blc.getRules());
+				return blc;
 			}
 		} else {
 			// redirect compact to parent 
-			compactedParent = compact(0, blc.getParent(), db);
+			compactedParent = compact(0, blc.getParent());
 		}
 		if(blc.getParent() != compactedParent) {
 			blc.changeToEqualParent(compactedParent);
@@ -756,6 +1381,40 @@ public class DBConsensusManager {
 		return blc;
 	}
 	
+	/**
+	 * Compacts first db superblock (same order as compact) with its parent, chain itself is not changed.
+	 * Not synchronized, so superblocks could be saved meanwhile.
+	 * @return superblock to be replaced in the chain and compacted superblock which replaces it with its parent or null
+	 */
+	public OpBlockChain[] compactDbSuperblocks(OpBlockChain blc) {
+		OpBlockChain toCompact = getDbSuperblockToCompact(0, blc);
+		if (toCompact == null) {
+			return null;
+		}
+		LOGGER.info("Chain to compact: ");
+		printBlockChain(blc);
+		// merged rows are prepared aside, db access of 2 blocks is locked only to switch them
+		return new OpBlockChain[] { toCompact, compactTwoDBAccessed(toCompact) };
+	}
+	
+	private OpBlockChain getDbSuperblockToCompact(int prevSize, OpBlockChain blc) {
+		if(blc == null || blc.isNullBlock() || blc.getParent().isNullBlock()) {
+			return null;
+		}
+		if(blc.isDbAccessed() != blc.getParent().isDbAccessed()) {
+			return getDbSuperblockToCompact(0, blc.getParent());
+		}
+		OpBlockChain res = getDbSuperblockToCompact(blc.getSuperblockSize(), blc.getParent());
+		if (res == null && blc.isDbAccessed() && isCompactNeeded(prevSize, blc)) {
+			res = blc;
+		}
+		return res;
+	}
+	
+	private boolean isCompactNeeded(int prevSize, OpBlockChain blc) {
+		return ((double) blc.getSuperblockSize() + compactCoefficient * prevSize) > ((double)blc.getParent().getSuperblockSize());
+	}
+	
 
 	private void printBlockChain(OpBlockChain blc) {
 		List<String> superBlocksChain = new ArrayList<String>();
@@ -810,7 +1469,7 @@ public class DBConsensusManager {
 				for (OpOperation o : block.getOperations()) {
 					jdbcTemplate.update("UPDATE " + OPERATIONS_TABLE
 							+ " set blocks = array_remove(blocks, ?) where hash = ?", 
-							blockHash, SecUtils.getHashBytes(o.getRawHash()));
+							blockHash, o.getOpHash().getBytes());
 				}
 				orphanedBlocks.remove(block.getRawHash());
 				blocks.remove(block.getRawHash());
@@ -847,12 +1506,15 @@ public class DBConsensusManager {
 				jdbcTemplate.update("UPDATE " + OPERATIONS_TABLE + " set superblock = NULL where superblock = ?", blockHash);
 				jdbcTemplate.update("UPDATE " + BLOCKS_TABLE + " set superblock = NULL where superblock = ? ", blockHash);
 				jdbcTemplate.update("DELETE FROM " + OP_DELETED_TABLE + " where superblock = ?", blockHash);
+				jdbcTemplate.update("DELETE FROM " + SUPERBLOCK_FILTERS_TABLE + " where superblock = ?", blockHash);
 				for (String objTable : dbSchema.getObjectTables()) {
 					jdbcTemplate.update("DELETE FROM " + objTable + " where superblock = ?", blockHash);
 				}
 				
 				jdbcTemplate.execute("COMMIT");
 				txRollback = false;
+				dba.invalidate();
+				dbSuperBlocks.remove(dba.superBlockHash, dba);
 				return res;
 			} finally {
 				if (txRollback) {
@@ -861,9 +1523,9 @@ public class DBConsensusManager {
 					} catch (DataAccessException e) {
 						LOGGER.error(String.format("Error while rollback %s ", e.getMessage()), e);
 					}
+					// revert
+					dba.markAsStale(false);
 				}
-				// revert
-				dba.markAsStale(false);
 			}
 		}
 		return blc;
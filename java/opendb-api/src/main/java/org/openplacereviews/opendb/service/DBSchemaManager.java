@@ -1,5 +1,6 @@
 package org.openplacereviews.opendb.service;
 
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
@@ -24,7 +25,9 @@ import org.postgresql.util.PGobject;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.ArgumentPreparedStatementSetter;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.ParameterizedPreparedStatementSetter;
 import org.springframework.jdbc.core.ResultSetExtractor;
 import org.springframework.stereotype.Service;
 
@@ -40,6 +43,7 @@ public class DBSchemaManager {
 	protected static String BLOCKS_TABLE = "blocks";
 	protected static String OPERATIONS_TABLE = "operations";
 	protected static String OP_DELETED_TABLE = "op_deleted";
+	protected static String SUPERBLOCK_FILTERS_TABLE = "superblock_filters";
 	protected static String OBJS_TABLE = "objs";
 	protected static String OPERATIONS_TRASH_TABLE = "operations_trash";
 	protected static String BLOCKS_TRASH_TABLE = "blocks_trash";
@@ -124,6 +128,10 @@ public class DBSchemaManager {
 		registerColumn(OP_DELETED_TABLE, "shash", "bytea[]", false);
 		registerColumn(OP_DELETED_TABLE, "mask", "bigint", false);
 
+		registerColumn(SUPERBLOCK_FILTERS_TABLE, "superblock", "bytea", true);
+		registerColumn(SUPERBLOCK_FILTERS_TABLE, "type", "text", false);
+		registerColumn(SUPERBLOCK_FILTERS_TABLE, "content", "bytea", false);
+
 		registerObjTable(OBJS_TABLE, MAX_KEY_SIZE);
 
 	}
@@ -204,9 +212,25 @@ public class DBSchemaManager {
 			List<ColumnDef> cls = schema.get(tableName);
 			createTable(metadataDB, jdbcTemplate, tableName, cls);
 		}
+		createObjKeysetIndexes(jdbcTemplate);
 		
 		migrateObjMappingIfNeeded(jdbcTemplate);
 	}
+	
+	// object pages are ordered by keys in "C" collation within superblock and type (also for existing tables)
+	private void createObjKeysetIndexes(JdbcTemplate jdbcTemplate) {
+		for (String tableName : objTableDefs.keySet()) {
+			jdbcTemplate.execute(String.format("create index if not exists %s_keyset_ind on %s (superblock, type, %s)",
+					tableName, tableName, getKeysetOrder(tableName)));
+		}
+	}
+	
+	/**
+	 * Order of object keys which matches CompoundKey.compareTo and is supported by keyset index 
+	 */
+	public String getKeysetOrder(String objTable) {
+		return generatePKString(objTable, "p%1$d COLLATE \"C\" NULLS FIRST", ", ");
+	}
 
 	@SuppressWarnings("unchecked")
 	private void migrateObjMappingIfNeeded(JdbcTemplate jdbcTemplate) {
@@ -354,9 +378,8 @@ public class DBSchemaManager {
 
 	
 	
-	public void insertObjIntoTable(String type, CompoundKey pkey, OpObject obj, byte[] superBlockHash, 
-			int sblockid, int sorder, JdbcTemplate jdbcTemplate) {
-		String table = getTableByType(type);
+	public Object[] getObjInsertArgs(String type, CompoundKey pkey, OpObject obj, byte[] superBlockHash, 
+			int sblockid, int sorder) {
 		int ksize = getKeySizeByType(type);
 		if (pkey.size() > ksize) {
 			throw new UnsupportedOperationException("Key is too long to be stored: " + pkey.toString());
@@ -379,11 +402,24 @@ public class DBSchemaManager {
 		}
 		args[5] = contentObj;
 		pkey.toArray(args, 6);
-		
-
-		jdbcTemplate.update("INSERT INTO " + table
+		return args;
+	}
+	
+	public void insertObjsIntoTable(String type, List<Object[]> args, int batchSize, JdbcTemplate jdbcTemplate) {
+		String table = getTableByType(type);
+		batchUpdate(jdbcTemplate, "INSERT INTO " + table
 				+ "(type,ophash,superblock,sblockid,sorder,content," + generatePKString(table, "p%1$d", ",")+") "
-				+ " values(?,?,?,?,?,?," + generatePKString(table, "?", ",")+ ")", args);		
+				+ " values(?,?,?,?,?,?," + generatePKString(table, "?", ",")+ ")", args, batchSize);
+	}
+	
+	public static void batchUpdate(JdbcTemplate jdbcTemplate, String sql, List<Object[]> args, int batchSize) {
+		jdbcTemplate.batchUpdate(sql, args, batchSize, new ParameterizedPreparedStatementSetter<Object[]>() {
+
+			@Override
+			public void setValues(PreparedStatement ps, Object[] argument) throws SQLException {
+				new ArgumentPreparedStatementSetter(argument).setValues(ps);
+			}
+		});
 	}
 	
 	
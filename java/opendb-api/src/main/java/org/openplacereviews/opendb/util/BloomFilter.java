@@ -0,0 +1,136 @@
+package org.openplacereviews.opendb.util;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compact membership filter: mightContain returns false only if key was never added.
+ * Filter is not synchronized, it should be fully built before it is shared.
+ */
+public class BloomFilter {
+
+	private static final double DEFAULT_FPP = 0.01;
+	private static final int MAX_HASHES = 16;
+
+	private final long[] bits;
+	private final int numHashes;
+	private final long numBits;
+
+	private BloomFilter(long[] bits, int numHashes) {
+		this.bits = bits;
+		this.numHashes = numHashes;
+		this.numBits = (long) bits.length * Long.SIZE;
+	}
+
+	public static BloomFilter create(int expectedKeys) {
+		return create(expectedKeys, DEFAULT_FPP);
+	}
+
+	public static BloomFilter create(int expectedKeys, double fpp) {
+		int n = Math.max(expectedKeys, 1);
+		long m = (long) Math.ceil(-n * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+		int k = (int) Math.round((double) m / n * Math.log(2));
+		k = Math.min(Math.max(k, 1), MAX_HASHES);
+		return new BloomFilter(new long[(int) Math.max((m + Long.SIZE - 1) / Long.SIZE, 1)], k);
+	}
+
+	public void put(byte[] key) {
+		long h1 = hash(key, 0x9747b28cL);
+		long h2 = hash(key, h1);
+		for (int i = 0; i < numHashes; i++) {
+			long ind = Math.floorMod(h1 + i * h2, numBits);
+			bits[(int) (ind >>> 6)] |= 1L << ind;
+		}
+	}
+
+	public void put(String key) {
+		put(key.getBytes(StandardCharsets.UTF_8));
+	}
+
+	public boolean mightContain(byte[] key) {
+		long h1 = hash(key, 0x9747b28cL);
+		long h2 = hash(key, h1);
+		for (int i = 0; i < numHashes; i++) {
+			long ind = Math.floorMod(h1 + i * h2, numBits);
+			if ((bits[(int) (ind >>> 6)] & (1L << ind)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public boolean mightContain(String key) {
+		return mightContain(key.getBytes(StandardCharsets.UTF_8));
+	}
+
+	public byte[] toBytes() {
+		ByteBuffer bf = ByteBuffer.allocate(4 + bits.length * 8);
+		bf.putInt(numHashes);
+		for (long l : bits) {
+			bf.putLong(l);
+		}
+		return bf.array();
+	}
+
+	public static BloomFilter fromBytes(byte[] data) {
+		ByteBuffer bf = ByteBuffer.wrap(data);
+		int k = bf.getInt();
+		long[] bits = new long[bf.remaining() / 8];
+		for (int i = 0; i < bits.length; i++) {
+			bits[i] = bf.getLong();
+		}
+		if (k < 1 || k > MAX_HASHES || bits.length == 0) {
+			throw new IllegalArgumentException("Corrupted bloom filter");
+		}
+		return new BloomFilter(bits, k);
+	}
+
+	// 64-bit murmur2 hash
+	@SuppressWarnings("fallthrough")
+	private static long hash(byte[] data, long seed) {
+		final long m = 0xc6a4a7935bd1e995L;
+		final int r = 47;
+		long h = (seed & 0xffffffffL) ^ (data.length * m);
+		int len8 = data.length / 8;
+		for (int i = 0; i < len8; i++) {
+			int i8 = i * 8;
+			long k = ((long) data[i8] & 0xff) | (((long) data[i8 + 1] & 0xff) << 8)
+					| (((long) data[i8 + 2] & 0xff) << 16) | (((long) data[i8 + 3] & 0xff) << 24)
+					| (((long) data[i8 + 4] & 0xff) << 32) | (((long) data[i8 + 5] & 0xff) << 40)
+					| (((long) data[i8 + 6] & 0xff) << 48) | (((long) data[i8 + 7] & 0xff) << 56);
+			k *= m;
+			k ^= k >>> r;
+			k *= m;
+			h ^= k;
+			h *= m;
+		}
+		int off = len8 * 8;
+		switch (data.length % 8) {
+		case 7:
+			h ^= (long) (data[off + 6] & 0xff) << 48;
+			// fall through
+		case 6:
+			h ^= (long) (data[off + 5] & 0xff) << 40;
+			// fall through
+		case 5:
+			h ^= (long) (data[off + 4] & 0xff) << 32;
+			// fall through
+		case 4:
+			h ^= (long) (data[off + 3] & 0xff) << 24;
+			// fall through
+		case 3:
+			h ^= (long) (data[off + 2] & 0xff) << 16;
+			// fall through
+		case 2:
+			h ^= (long) (data[off + 1] & 0xff) << 8;
+			// fall through
+		case 1:
+			h ^= (long) (data[off] & 0xff);
+			h *= m;
+		}
+		h ^= h >>> r;
+		h *= m;
+		h ^= h >>> r;
+		return h;
+	}
+}
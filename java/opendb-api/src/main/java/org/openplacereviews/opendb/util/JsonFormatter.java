@@ -1,11 +1,13 @@
 package org.openplacereviews.opendb.util;
 
+import java.io.IOException;
 import java.io.Reader;
-import java.lang.reflect.Type;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.TreeMap;
 
 import org.openplacereviews.opendb.ops.OpBlock;
@@ -15,17 +17,19 @@ import org.springframework.stereotype.Component;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
-import com.google.gson.JsonArray;
-import com.google.gson.JsonDeserializationContext;
-import com.google.gson.JsonDeserializer;
 import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParseException;
-import com.google.gson.JsonPrimitive;
 import com.google.gson.JsonSyntaxException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 
 @Component
 public class JsonFormatter {
+	
+	private static final String F_CANONICAL_JSON = "canonicalJson";
 
 	private Gson gson;
 	
@@ -36,74 +40,139 @@ public class JsonFormatter {
 	public JsonFormatter() {
 		GsonBuilder builder = new GsonBuilder();
 		builder.disableHtmlEscaping();
-		builder.registerTypeAdapter(OpOperation.class, new OpOperation.OpOperationBeanAdapter(false));
-		builder.registerTypeAdapter(OpObject.class, new OpObject.OpObjectAdapter(false));
-		builder.registerTypeAdapter(OpBlock.class, new OpBlock.OpBlockBeanAdapter(false));
-		builder.registerTypeAdapter(TreeMap.class, new MapDeserializerDoubleAsIntFix());
+		builder.registerTypeAdapterFactory(new OpOperation.OpOperationBeanAdapter(false));
+		builder.registerTypeAdapterFactory(new OpObject.OpObjectAdapter(false));
+		builder.registerTypeAdapterFactory(new OpBlock.OpBlockBeanAdapter(false));
+		builder.registerTypeAdapterFactory(new MapDeserializerDoubleAsIntFix());
 		gson = builder.create();
 		
 		builder = new GsonBuilder();
 		builder.disableHtmlEscaping();
-		builder.registerTypeAdapter(OpOperation.class, new OpOperation.OpOperationBeanAdapter(false, true));
-		builder.registerTypeAdapter(OpObject.class, new OpObject.OpObjectAdapter(false));
-		builder.registerTypeAdapter(TreeMap.class, new MapDeserializerDoubleAsIntFix());
+		builder.registerTypeAdapterFactory(new OpOperation.OpOperationBeanAdapter(false, true));
+		builder.registerTypeAdapterFactory(new OpObject.OpObjectAdapter(false));
+		builder.registerTypeAdapterFactory(new MapDeserializerDoubleAsIntFix());
 		gsonOperationHash = builder.create();
 		
 		builder = new GsonBuilder();
 		builder.disableHtmlEscaping();
-		builder.registerTypeAdapter(OpOperation.class, new OpOperation.OpOperationBeanAdapter(true));
-		builder.registerTypeAdapter(OpObject.class, new OpObject.OpObjectAdapter(true));
-		builder.registerTypeAdapter(OpBlock.class, new OpBlock.OpBlockBeanAdapter(true));
-		builder.registerTypeAdapter(TreeMap.class, new MapDeserializerDoubleAsIntFix());
+		builder.registerTypeAdapterFactory(new OpOperation.OpOperationBeanAdapter(true));
+		builder.registerTypeAdapterFactory(new OpObject.OpObjectAdapter(true));
+		builder.registerTypeAdapterFactory(new OpBlock.OpBlockBeanAdapter(true));
+		builder.registerTypeAdapterFactory(new MapDeserializerDoubleAsIntFix());
 		gsonFullOutput = builder.create();
 		
 		
 	}
 	
-	public static class MapDeserializerDoubleAsIntFix implements JsonDeserializer<TreeMap<String, Object>>{
-
-	    @Override  @SuppressWarnings("unchecked")
-	    public TreeMap<String, Object> deserialize(JsonElement json, Type typeOfT, JsonDeserializationContext context) throws JsonParseException {
-	        return (TreeMap<String, Object>) read(json);
-	    }
-
-	    public Object read(JsonElement in) {
-
-	        if(in.isJsonArray()){
-	            List<Object> list = new ArrayList<Object>();
-	            JsonArray arr = in.getAsJsonArray();
-	            for (JsonElement anArr : arr) {
-	                list.add(read(anArr));
-	            }
-	            return list;
-	        }else if(in.isJsonObject()){
-	            Map<String, Object> map = new TreeMap<String, Object>();
-	            JsonObject obj = in.getAsJsonObject();
-	            Set<Map.Entry<String, JsonElement>> entitySet = obj.entrySet();
-	            for(Map.Entry<String, JsonElement> entry: entitySet){
-	                map.put(entry.getKey(), read(entry.getValue()));
-	            }
-	            return map;
-	        }else if( in.isJsonPrimitive()){
-	            JsonPrimitive prim = in.getAsJsonPrimitive();
-	            if(prim.isBoolean()){
-	                return prim.getAsBoolean();
-	            }else if(prim.isString()){
-	                return prim.getAsString();
-	            }else if(prim.isNumber()){
-	                Number num = prim.getAsNumber();
-	                // here you can handle double int/long values
-	                // and return any type you want
-	                // this solution will transform 3.0 float to long values
-	                if(Math.ceil(num.doubleValue())  == num.longValue())
-	                   return num.longValue();
-	                else{
-	                    return num.doubleValue();
-	                }
-	            }
-	        }
-	        return null;
-	    }
+	public static class MapDeserializerDoubleAsIntFix implements TypeAdapterFactory {
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
+			if (type.getRawType() != TreeMap.class) {
+				return null;
+			}
+			// default map serialization
+			final TypeAdapter<T> delegate = gson.getDelegateAdapter(this, type);
+			return new TypeAdapter<T>() {
+
+				@Override
+				public void write(JsonWriter out, T value) throws IOException {
+					delegate.write(out, value);
+				}
+
+				@Override
+				public T read(JsonReader in) throws IOException {
+					if (in.peek() == JsonToken.NULL) {
+						in.nextNull();
+						return null;
+					}
+					return (T) readMap(in);
+				}
+			};
+		}
+	}
+
+	public static TreeMap<String, Object> readMap(JsonReader in) throws IOException {
+		TreeMap<String, Object> map = new TreeMap<String, Object>();
+		in.beginObject();
+		while (in.hasNext()) {
+			map.put(in.nextName(), readValue(in));
+		}
+		in.endObject();
+		return map;
+	}
+
+	public static Object readValue(JsonReader in) throws IOException {
+		switch (in.peek()) {
+		case BEGIN_ARRAY:
+			List<Object> list = new ArrayList<Object>();
+			in.beginArray();
+			while (in.hasNext()) {
+				list.add(readValue(in));
+			}
+			in.endArray();
+			return list;
+		case BEGIN_OBJECT:
+			return readMap(in);
+		case BOOLEAN:
+			return in.nextBoolean();
+		case STRING:
+			return in.nextString();
+		case NUMBER:
+			String num = in.nextString();
+			double d = Double.parseDouble(num);
+			long l = parseLong(num);
+			// transform 3.0 float to long values
+			if (Math.ceil(d) == l) {
+				return l;
+			} else {
+				return d;
+			}
+		case NULL:
+			in.nextNull();
+			return null;
+		default:
+			throw new IllegalStateException("Unexpected json token: " + in.peek());
+		}
+	}
+
+	private static long parseLong(String num) {
+		try {
+			return Long.parseLong(num);
+		} catch (NumberFormatException e) {
+			return new BigDecimal(num).longValue();
+		}
+	}
+
+	// writes map in the same way as default gson map adapter (null values are skipped by writer)
+	public static void writeMap(Gson gson, JsonWriter out, Map<?, ?> map) throws IOException {
+		out.beginObject();
+		for (Map.Entry<?, ?> e : map.entrySet()) {
+			out.name(String.valueOf(e.getKey()));
+			writeValue(gson, out, e.getValue());
+		}
+		out.endObject();
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public static void writeValue(Gson gson, JsonWriter out, Object value) throws IOException {
+		if (value == null) {
+			out.nullValue();
+		} else if (value instanceof String) {
+			out.value((String) value);
+		} else if (value instanceof Map) {
+			writeMap(gson, out, (Map<?, ?>) value);
+		} else if (value instanceof Collection) {
+			out.beginArray();
+			for (Object o : (Collection<?>) value) {
+				writeValue(gson, out, o);
+			}
+			out.endArray();
+		} else {
+			TypeAdapter adapter = gson.getAdapter(value.getClass());
+			adapter.write(out, value);
+		}
 	}
 	
 //	operations to parse / format related
@@ -120,7 +189,14 @@ public class JsonFormatter {
 	}
 	
 	public String toJson(OpBlock bl) {
-		return gson.toJson(bl);
+		if (!bl.isImmutable()) {
+			return gson.toJson(bl);
+		}
+		CanonicalJson c = getOrCreateCanonicalJson(bl);
+		if (c.json == null) {
+			c.json = gson.toJson(bl);
+		}
+		return c.json;
 	}
 	
 	public JsonElement toJsonElement(Object o) {
@@ -140,18 +216,108 @@ public class JsonFormatter {
 	public String fullObjectToJson(Object o) {
 		return gsonFullOutput.toJson(o);
 	}
-	
+
+	/**
+	 * Full output of stored object json without parsing it, only eval with parent operation is appended
+	 */
+	public String fullObjectToJson(String objJson, String parentType, String parentHash) {
+		TreeMap<String, Object> eval = new TreeMap<String, Object>();
+		if (parentType != null) {
+			eval.put(OpObject.F_PARENT_TYPE, parentType);
+		}
+		if (parentHash != null) {
+			eval.put(OpObject.F_PARENT_HASH, parentHash);
+		}
+		int end = objJson.lastIndexOf('}');
+		if (end == -1) {
+			throw new IllegalArgumentException(String.format("Stored object is not a json object: %s", objJson));
+		}
+		if (eval.isEmpty()) {
+			return objJson;
+		}
+		int last = end - 1;
+		while (last >= 0 && Character.isWhitespace(objJson.charAt(last))) {
+			last--;
+		}
+		StringBuilder sb = new StringBuilder(objJson.length() + 128);
+		sb.append(objJson, 0, end);
+		if (last >= 0 && objJson.charAt(last) != '{') {
+			sb.append(',');
+		}
+		sb.append(gson.toJson(OpObject.F_EVAL)).append(':').append(gson.toJson(eval)).append('}');
+		return sb.toString();
+	}
+
 	
 	public String opToJsonNoHash(OpOperation op) {
-		return gsonOperationHash.toJson(op);
+		if (!op.isImmutable()) {
+			return gsonOperationHash.toJson(op);
+		}
+		CanonicalJson c = getOrCreateCanonicalJson(op);
+		if (c.jsonNoHash == null) {
+			c.jsonNoHash = gsonOperationHash.toJson(op);
+		}
+		return c.jsonNoHash;
+	}
+	
+	/**
+	 * UTF-8 bytes of operation json without hash and signature, input to calculate operation hash 
+	 */
+	public byte[] opHashInput(OpOperation op) {
+		if (!op.isImmutable()) {
+			return opToJsonNoHash(op).getBytes(StandardCharsets.UTF_8);
+		}
+		CanonicalJson c = getOrCreateCanonicalJson(op);
+		if (c.hashInput == null) {
+			c.hashInput = opToJsonNoHash(op).getBytes(StandardCharsets.UTF_8);
+		}
+		return c.hashInput;
 	}
 	
 	public String opToJson(OpOperation op) {
-		return gson.toJson(op);
+		return objToJson(op);
 	}
 	
 	public String objToJson(OpObject op) {
-		return gson.toJson(op);
+		if (!op.isImmutable()) {
+			return gson.toJson(op);
+		}
+		CanonicalJson c = getOrCreateCanonicalJson(op);
+		if (c.json == null) {
+			c.json = gson.toJson(op);
+		}
+		return c.json;
+	}
+	
+	/**
+	 * Returns canonical json if it was already serialized for immutable object
+	 */
+	public static String getCachedJson(OpObject o) {
+		CanonicalJson c = (CanonicalJson) o.getCacheObject(F_CANONICAL_JSON);
+		return c == null || c.owner != o ? null : c.json;
+	}
+	
+	private static CanonicalJson getOrCreateCanonicalJson(OpObject o) {
+		CanonicalJson c = (CanonicalJson) o.getCacheObject(F_CANONICAL_JSON);
+		// cache fields are copied with object (block header copy has different json)
+		if (c == null || c.owner != o) {
+			// concurrent creation only leads to serializing twice
+			c = new CanonicalJson(o);
+			o.putCacheObject(F_CANONICAL_JSON, c);
+		}
+		return c;
+	}
+	
+	// serialized form of immutable object never changes (not a String to stay out of eval output)
+	private static class CanonicalJson {
+		final OpObject owner;
+		volatile String json;
+		volatile String jsonNoHash;
+		volatile byte[] hashInput;
+		
+		CanonicalJson(OpObject owner) {
+			this.owner = owner;
+		}
 	}
 
 	
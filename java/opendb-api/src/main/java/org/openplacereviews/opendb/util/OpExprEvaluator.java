@@ -2,6 +2,7 @@ package org.openplacereviews.opendb.util;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -59,7 +60,43 @@ public class OpExprEvaluator {
 
 	public static boolean TRACE_EXPRESSIONS = false;
 
-	private ExpressionContext ectx;
+	// functions are resolved once when expression is compiled
+	private enum Function {
+		STR_FIRST(FUNCTION_STR_FIRST),
+		STR_SECOND(FUNCTION_STR_SECOND),
+		STR_COMBINE(FUNCTION_STR_COMBINE),
+		M_PLUS(FUNCTION_M_PLUS),
+		M_MULT(FUNCTION_M_MULT),
+		M_DIV(FUNCTION_M_DIV),
+		M_MINUS(FUNCTION_M_MINUS),
+		STD_EQ(FUNCTION_STD_EQ),
+		STD_NEQ(FUNCTION_STD_NEQ),
+		STD_LEQ(FUNCTION_STD_LEQ),
+		STD_LE(FUNCTION_STD_LE),
+		STD_SIZE(FUNCTION_STD_SIZE),
+		STD_OR(FUNCTION_STD_OR),
+		STD_AND(FUNCTION_STD_AND),
+		SET_IN(FUNCTION_SET_IN),
+		SET_ALL(FUNCTION_SET_ALL),
+		SET_MINUS(FUNCTION_SET_MINUS),
+		AUTH_HAS_SIG_ROLES(FUNCTION_AUTH_HAS_SIG_ROLES),
+		BLC_FIND(FUNCTION_BLC_FIND);
+		
+		private static final Map<String, Function> BY_NAME = new HashMap<String, Function>();
+		static {
+			for (Function f : values()) {
+				BY_NAME.put(f.name, f);
+			}
+		}
+		
+		private final String name;
+		
+		private Function(String name) {
+			this.name = name;
+		}
+	}
+
+	private final CompiledExpr expr;
 
 	public static class EvaluationContext {
 		private JsonElement ctx;
@@ -76,12 +113,20 @@ public class OpExprEvaluator {
 	}
 
 	private OpExprEvaluator(ExpressionContext ectx) {
-		this.ectx = ectx;
-
+		this.expr = compile(ectx);
 	}
 
 	public Object evaluateObject(EvaluationContext obj) {
-		return eval(ectx, obj);
+		return expr.eval(obj);
+	}
+
+	/**
+	 * Top level fields of evaluation context read by expression, 
+	 * null if expression depends on the whole context or blockchain state
+	 */
+	public Set<String> getRootFields() {
+		Set<String> fields = new TreeSet<String>();
+		return expr.collectRootFields(fields) ? fields : null;
 	}
 
 	public boolean evaluateBoolean(EvaluationContext ctx) {
@@ -105,18 +150,21 @@ public class OpExprEvaluator {
 		return new OpExprEvaluator(ectx);
 	}
 
-	private Object callFunction(String functionName, List<Object> args, EvaluationContext ctx) {
+	private Object callFunction(Function function, String functionName, List<Object> args, EvaluationContext ctx) {
+		if (function == null) {
+			throw new UnsupportedOperationException(String.format("Unsupported function '%s'", functionName));
+		}
 		Number n1, n2;
 		Object obj1, obj2;
-		switch (functionName) {
-		case FUNCTION_M_MULT:
+		switch (function) {
+		case M_MULT:
 			n1 = (Number) getObjArgument(functionName, args, 0);
 			n2 = (Number) getObjArgument(functionName, args, 1);
 			if (n1.doubleValue() == Math.ceil(n1.doubleValue()) && n2.doubleValue() == Math.ceil(n2.doubleValue())) {
 				return n1.longValue() * n2.longValue();
 			}
 			return n1.doubleValue() * n2.doubleValue();
-		case FUNCTION_M_DIV:
+		case M_DIV:
 			n1 = (Number) getObjArgument(functionName, args, 0);
 			n2 = (Number) getObjArgument(functionName, args, 1);
 			if (n1.doubleValue() == Math.ceil(n1.doubleValue()) && n2.doubleValue() == Math.ceil(n2.doubleValue())) {
@@ -132,21 +180,21 @@ public class OpExprEvaluator {
 				return n1.longValue() / n2.longValue();
 			}
 			return n1.doubleValue() / n2.doubleValue();
-		case FUNCTION_M_PLUS:
+		case M_PLUS:
 			n1 = (Number) getObjArgument(functionName, args, 0);
 			n2 = (Number) getObjArgument(functionName, args, 1);
 			if (n1.doubleValue() == Math.ceil(n1.doubleValue()) && n2.doubleValue() == Math.ceil(n2.doubleValue())) {
 				return n1.longValue() + n2.longValue();
 			}
 			return n1.doubleValue() + n2.doubleValue();
-		case FUNCTION_M_MINUS:
+		case M_MINUS:
 			n1 = (Number) getObjArgument(functionName, args, 0);
 			n2 = (Number) getObjArgument(functionName, args, 1);
 			if (n1.doubleValue() == Math.ceil(n1.doubleValue()) && n2.doubleValue() == Math.ceil(n2.doubleValue())) {
 				return n1.longValue() - n2.longValue();
 			}
 			return n1.doubleValue() - n2.doubleValue();
-		case FUNCTION_BLC_FIND:
+		case BLC_FIND:
 			if (args.size() > 3) {
 				throw new UnsupportedOperationException("blc:find Not supported multiple args yet");
 			} else if (args.size() == 3) {
@@ -158,18 +206,18 @@ public class OpExprEvaluator {
 			} else {
 				throw new UnsupportedOperationException("blc:find not enough arguments");
 			}
-		case FUNCTION_STR_FIRST:
-		case FUNCTION_STR_SECOND:
+		case STR_FIRST:
+		case STR_SECOND:
 			String ffs = getStringArgument(functionName, args, 0);
 			if (ffs != null) {
 				int indexOf = ffs.indexOf(':');
 				if (indexOf != -1) {
-					return functionName.equals(FUNCTION_STR_FIRST) ? ffs.substring(0, indexOf) : ffs
+					return function == Function.STR_FIRST ? ffs.substring(0, indexOf) : ffs
 							.substring(indexOf + 1);
 				}
 			}
 			return ffs;
-		case FUNCTION_STR_COMBINE:
+		case STR_COMBINE:
 			obj1 = getObjArgument(functionName, args, 0, false);
 			String s1 = getStringArgument(functionName, args, 1);
 			String res = "";
@@ -187,30 +235,30 @@ public class OpExprEvaluator {
 				}
 			}
 			return res;
-		case FUNCTION_STD_EQ:
+		case STD_EQ:
 			obj1 = getObjArgument(functionName, args, 0);
 			obj2 = getObjArgument(functionName, args, 1);
 			return objEquals(obj1, obj2);
-		case FUNCTION_STD_NEQ:
+		case STD_NEQ:
 			obj1 = getObjArgument(functionName, args, 0);
 			obj2 = getObjArgument(functionName, args, 1);
 			int r = objEquals(obj1, obj2);
 			return r == 0 ? 1 : 0;
-		case FUNCTION_STD_LEQ:
+		case STD_LEQ:
 			n1 = (Number) getObjArgument(functionName, args, 0);
 			n2 = (Number) getObjArgument(functionName, args, 1);
 			if (n1.doubleValue() == Math.ceil(n1.doubleValue()) && n2.doubleValue() == Math.ceil(n2.doubleValue())) {
 				return n1.longValue() <= n2.longValue() ? 1 : 0;
 			}
 			return n1.doubleValue() <= n2.doubleValue() ? 1 : 0;
-		case FUNCTION_STD_LE:
+		case STD_LE:
 			n1 = (Number) getObjArgument(functionName, args, 0);
 			n2 = (Number) getObjArgument(functionName, args, 1);
 			if (n1.doubleValue() == Math.ceil(n1.doubleValue()) && n2.doubleValue() == Math.ceil(n2.doubleValue())) {
 				return n1.longValue() < n2.longValue();
 			}
 			return n1.doubleValue() < n2.doubleValue() ? 1 : 0;
-		case FUNCTION_STD_SIZE:
+		case STD_SIZE:
 			Object ob = getObjArgument(functionName, args, 0, false);
 			if (ob instanceof JsonArray) {
 				return ((JsonArray) ob).size();
@@ -218,7 +266,7 @@ public class OpExprEvaluator {
 				return ((JsonObject) ob).size();
 			}
 			return ob == null ? 0 : 1;
-		case FUNCTION_STD_AND:
+		case STD_AND:
 			for (Object o : args) {
 				if (o == null) {
 					return 0;
@@ -233,7 +281,7 @@ public class OpExprEvaluator {
 				}
 			}
 			return 1;
-		case FUNCTION_STD_OR:
+		case STD_OR:
 			for (Object o : args) {
 				if (o == null) {
 					continue;
@@ -248,7 +296,7 @@ public class OpExprEvaluator {
 				}
 			}
 			return 0;
-		case FUNCTION_AUTH_HAS_SIG_ROLES:
+		case AUTH_HAS_SIG_ROLES:
 			Object opSigned = getObjArgument(functionName, args, 0, false);
 			Object checkRoles = getObjArgument(functionName, args, 1, false);
 			List<String> signedBy, roles;
@@ -279,7 +327,7 @@ public class OpExprEvaluator {
 			}
 
 			return 1;
-		case FUNCTION_SET_MINUS:
+		case SET_MINUS:
 			obj1 = getObjArgument(functionName, args, 0, false);
 			obj2 = getObjArgument(functionName, args, 1, false);
 			Set<String> obj1Set = new TreeSet<String>();
@@ -310,7 +358,7 @@ public class OpExprEvaluator {
 				ar.add(s);
 			}
 			return ar;
-		case FUNCTION_SET_ALL:
+		case SET_ALL:
 			JsonArray arrayRes = new JsonArray();
 			for (Object o : args) {
 				if (o instanceof JsonElement) {
@@ -322,7 +370,7 @@ public class OpExprEvaluator {
 				}
 			}
 			return arrayRes;
-		case FUNCTION_SET_IN:
+		case SET_IN:
 			obj1 = getObjArgument(functionName, args, 0, false);
 			obj2 = getObjArgument(functionName, args, 1, false);
 			if (!isJsonArrayObj(obj1) && !isJsonMapObj(obj1)) {
@@ -368,17 +416,7 @@ public class OpExprEvaluator {
 			}
 		}
 		if (grantObj != null) {
-			Map<String, Set<String>> roleToChildRoles = ctx.blc.getRules().getRoles(ctx.blc);
-			List<String> grantedRoles = grantObj.getStringList("roles");
-			for (String grantedRole : grantedRoles) {
-				if (OUtils.equals(grantedRole, roleToCheck)) {
-					return true;
-				}
-				Set<String> derivedRoles = roleToChildRoles.get(grantedRole);
-				if(derivedRoles != null && derivedRoles.contains(roleToCheck)) {
-					return true;
-				}
-			}
+			return ctx.blc.getRules().getRolesClosure(ctx.blc).hasRole(grantObj, roleToCheck);
 		}
 		return false;
 	}
@@ -464,22 +502,145 @@ public class OpExprEvaluator {
 		}
 	}
 
-	private Object eval(ExpressionContext expr, EvaluationContext ctx) {
+	private abstract class CompiledExpr {
+		
+		abstract Object eval(EvaluationContext ctx);
+		
+		// returns false if expression depends on whole context or blockchain
+		abstract boolean collectRootFields(Set<String> fields);
+	}
+	
+	private class ThisExpr extends CompiledExpr {
+
+		@Override
+		Object eval(EvaluationContext ctx) {
+			return ctx.ctx;
+		}
+
+		@Override
+		boolean collectRootFields(Set<String> fields) {
+			return false;
+		}
+	}
+	
+	private class ConstantExpr extends CompiledExpr {
+		private final Object value;
+		
+		ConstantExpr(Object value) {
+			this.value = value;
+		}
+
+		@Override
+		Object eval(EvaluationContext ctx) {
+			return value;
+		}
+
+		@Override
+		boolean collectRootFields(Set<String> fields) {
+			return true;
+		}
+	}
+	
+	private class FieldExpr extends CompiledExpr {
+		private final CompiledExpr obj;
+		private final String field;
+		private final Integer index;
+		
+		FieldExpr(CompiledExpr obj, String field) {
+			this.obj = obj;
+			this.field = field;
+			Integer ind = null;
+			try {
+				ind = Integer.parseInt(field);
+			} catch (NumberFormatException e) {
+			}
+			this.index = ind;
+		}
+
+		@Override
+		Object eval(EvaluationContext ctx) {
+			return getField(obj == null ? ctx.ctx : obj.eval(ctx), field, index);
+		}
+
+		@Override
+		boolean collectRootFields(Set<String> fields) {
+			if (obj == null || obj instanceof ThisExpr) {
+				fields.add(field);
+				return true;
+			}
+			return obj.collectRootFields(fields);
+		}
+	}
+	
+	private class MethodCallExpr extends CompiledExpr {
+		private final String functionName;
+		private final Function function;
+		private final CompiledExpr[] args;
+		private final String[] argsText;
+		
+		MethodCallExpr(String functionName, List<CompiledExpr> args, List<String> argsText) {
+			this.functionName = functionName;
+			// unsupported function fails only when it is evaluated
+			this.function = Function.BY_NAME.get(functionName);
+			this.args = args.toArray(new CompiledExpr[args.size()]);
+			this.argsText = argsText.toArray(new String[argsText.size()]);
+		}
+
+		@Override
+		Object eval(EvaluationContext ctx) {
+			List<Object> argValues = new ArrayList<Object>(args.length);
+			StringBuilder traceExpr = null;
+			if (TRACE_EXPRESSIONS) {
+				traceExpr = new StringBuilder();
+				traceExpr.append(space(ctx.exprNested)).append(functionName);
+			}
+			for (int i = 0; i < args.length; i++) {
+				Object obj = args[i].eval(ctx);
+				if (TRACE_EXPRESSIONS) {
+					traceExpr.append("[ '").append(argsText[i]).append("'");
+					traceExpr.append(" -> '").append(obj).append("']");
+				}
+				argValues.add(obj);
+			}
+			ctx.exprNested++;
+			Object funcRes = callFunction(function, functionName, argValues, ctx);
+			if (TRACE_EXPRESSIONS) {
+				System.out.println("EXPR:  " + traceExpr.toString() + " = " + funcRes);
+			}
+			ctx.exprNested--;
+			return funcRes;
+		}
+
+		@Override
+		boolean collectRootFields(Set<String> fields) {
+			if (function == null || function == Function.BLC_FIND || function == Function.AUTH_HAS_SIG_ROLES) {
+				return false;
+			}
+			for (CompiledExpr a : args) {
+				if (!a.collectRootFields(fields)) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	private CompiledExpr compile(ExpressionContext expr) {
 		ParseTree child = expr.getChild(0);
 		if (child instanceof TerminalNode) {
 			TerminalNode t = ((TerminalNode) child);
 			if (t.getSymbol().getType() == OpenDBExprParser.INT) {
-				return Long.parseLong(t.getText());
+				return new ConstantExpr(Long.parseLong(t.getText()));
 			} else if (t.getSymbol().getType() == OpenDBExprParser.THIS) {
-				return ctx.ctx;
+				return new ThisExpr();
 			} else if (t.getSymbol().getType() == OpenDBExprParser.DOT) {
 				String field = expr.getChild(1).getText();
-				return getField(ctx.ctx, field);
+				return new FieldExpr(null, field);
 
 			} else if (t.getSymbol().getType() == OpenDBExprParser.STRING_LITERAL1) {
-				return t.getText().substring(1, t.getText().length() - 1).replace("\\\'", "\'");
+				return new ConstantExpr(t.getText().substring(1, t.getText().length() - 1).replace("\\\'", "\'"));
 			} else if (t.getSymbol().getType() == OpenDBExprParser.STRING_LITERAL2) {
-				return t.getText().substring(1, t.getText().length() - 1).replace("\\\"", "\"");
+				return new ConstantExpr(t.getText().substring(1, t.getText().length() - 1).replace("\\\"", "\""));
 			}
 			throw new UnsupportedOperationException("Terminal node is not supported");
 		}
@@ -487,50 +648,34 @@ public class OpExprEvaluator {
 				&& ((TerminalNode) expr.getChild(1)).getSymbol().getType() == OpenDBExprLexer.DOT) {
 			ExpressionContext fc = ((ExpressionContext) child);
 			String field = expr.getChild(2).getText();
-			Object eval = eval(fc, ctx);
-			return getField(eval, field);
+			return new FieldExpr(compile(fc), field);
 		}
 		if (child instanceof MethodCallContext) {
 			MethodCallContext mcc = ((MethodCallContext) child);
 			String functionName = mcc.getChild(0).getText();
-			List<Object> args = new ArrayList<Object>();
-			StringBuilder traceExpr = null;
-			if (TRACE_EXPRESSIONS) {
-				traceExpr = new StringBuilder();
-				traceExpr.append(space(ctx.exprNested)).append(functionName);
-			}
+			List<CompiledExpr> args = new ArrayList<CompiledExpr>();
+			List<String> argsText = new ArrayList<String>();
 			for (int i = 0; i < mcc.getChildCount(); i++) {
 				ParseTree pt = mcc.getChild(i);
 				if (pt instanceof ExpressionContext) {
-					Object obj = eval((ExpressionContext) pt, ctx);
-					if (TRACE_EXPRESSIONS) {
-						traceExpr.append("[ '").append(pt.getText()).append("'");
-						traceExpr.append(" -> '").append(obj).append("']");
-					}
-					args.add(obj);
+					args.add(compile((ExpressionContext) pt));
+					argsText.add(pt.getText());
 				}
 			}
-			ctx.exprNested++;
-			Object funcRes = callFunction(functionName, args, ctx);
-			if (TRACE_EXPRESSIONS) {
-				System.out.println("EXPR:  " + traceExpr.toString() + " = " + funcRes);
-			}
-			ctx.exprNested--;
-			return funcRes;
+			return new MethodCallExpr(functionName, args, argsText);
 		}
 		throw new UnsupportedOperationException("Unsupported parser operation: %s" + child.getText());
 	}
 
-	private Object getField(Object obj, String field) {
+	private Object getField(Object obj, String field, Integer index) {
 		if (obj instanceof JsonArray) {
 			JsonArray ar = (JsonArray) obj;
-			try {
-				int nt = Integer.parseInt(field);
+			if (index != null) {
+				int nt = index;
 				if (nt < ar.size() && nt >= 0) {
 					return unwrap(ar.get(nt));
 				}
 				return null;
-			} catch (NumberFormatException e) {
 			}
 			if (ar.size() > 0 && ar.get(0) instanceof JsonObject) {
 				return unwrap(((JsonObject) ar.get(0)).get(field));
@@ -0,0 +1,406 @@
+package org.openplacereviews.opendb.util;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Immutable hash array mapped trie: plus / minus return new map which shares all untouched nodes with
+ * the original one, so map could be published as a snapshot and changed by copying only log32(n) nodes.
+ * Null keys and values are not supported.
+ */
+public final class PersistentHashMap<K, V> implements Iterable<Entry<K, V>> {
+
+	private static final int BITS = 5;
+	private static final int MASK = (1 << BITS) - 1;
+
+	@SuppressWarnings("rawtypes")
+	private static final PersistentHashMap EMPTY = new PersistentHashMap<Object, Object>(null, 0);
+
+	private final Node root;
+	private final int size;
+
+	private PersistentHashMap(Node root, int size) {
+		this.root = root;
+		this.size = size;
+	}
+
+	@SuppressWarnings("unchecked")
+	public static <K, V> PersistentHashMap<K, V> empty() {
+		return EMPTY;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	@SuppressWarnings("unchecked")
+	public V get(Object key) {
+		if (root == null || key == null) {
+			return null;
+		}
+		return (V) root.find(0, key.hashCode(), key);
+	}
+
+	public boolean containsKey(Object key) {
+		return get(key) != null;
+	}
+
+	public PersistentHashMap<K, V> plus(K key, V value) {
+		if (key == null || value == null) {
+			throw new IllegalArgumentException("Null keys and values are not supported");
+		}
+		int hash = key.hashCode();
+		boolean[] added = new boolean[1];
+		Node nroot;
+		if (root == null) {
+			nroot = new BitmapNode(0, new Object[0]).put(0, hash, new SimpleEntry<K, V>(key, value), added);
+		} else {
+			nroot = root.put(0, hash, new SimpleEntry<K, V>(key, value), added);
+		}
+		if (nroot == root) {
+			return this;
+		}
+		return new PersistentHashMap<K, V>(nroot, added[0] ? size + 1 : size);
+	}
+
+	public PersistentHashMap<K, V> minus(Object key) {
+		if (root == null || key == null) {
+			return this;
+		}
+		Node nroot = root.remove(0, key.hashCode(), key);
+		if (nroot == root) {
+			return this;
+		}
+		if (nroot == null) {
+			return empty();
+		}
+		return new PersistentHashMap<K, V>(nroot, size - 1);
+	}
+
+	/**
+	 * Puts all entries of other map (they override existing ones)
+	 */
+	public PersistentHashMap<K, V> plusAll(PersistentHashMap<K, V> other) {
+		if (isEmpty()) {
+			return other;
+		}
+		PersistentHashMap<K, V> res = this;
+		for (Entry<K, V> e : other) {
+			res = res.plus(e.getKey(), e.getValue());
+		}
+		return res;
+	}
+
+	@Override
+	public Iterator<Entry<K, V>> iterator() {
+		return new EntryIterator<K, V>(root);
+	}
+
+	/**
+	 * Read only map view of this snapshot
+	 */
+	public Map<K, V> asMap() {
+		return new AbstractMap<K, V>() {
+
+			@Override
+			public Set<Entry<K, V>> entrySet() {
+				return new AbstractSet<Entry<K, V>>() {
+
+					@Override
+					public Iterator<Entry<K, V>> iterator() {
+						return PersistentHashMap.this.iterator();
+					}
+
+					@Override
+					public int size() {
+						return size;
+					}
+				};
+			}
+
+			@Override
+			public V get(Object key) {
+				return PersistentHashMap.this.get(key);
+			}
+
+			@Override
+			public boolean containsKey(Object key) {
+				return PersistentHashMap.this.containsKey(key);
+			}
+
+			@Override
+			public int size() {
+				return size;
+			}
+		};
+	}
+
+	private static class SimpleEntry<K, V> extends AbstractMap.SimpleImmutableEntry<K, V> {
+		private static final long serialVersionUID = 1L;
+		final int hash;
+
+		SimpleEntry(K key, V value) {
+			super(key, value);
+			this.hash = key.hashCode();
+		}
+	}
+
+	private static abstract class Node {
+		// slots are either SimpleEntry or Node
+		final Object[] slots;
+
+		Node(Object[] slots) {
+			this.slots = slots;
+		}
+
+		abstract Object find(int shift, int hash, Object key);
+
+		// returns same node if nothing changed
+		abstract Node put(int shift, int hash, SimpleEntry<?, ?> e, boolean[] added);
+
+		// returns same node if nothing changed and null if node is empty
+		abstract Node remove(int shift, int hash, Object key);
+
+		SimpleEntry<?, ?> singleEntry() {
+			if (slots.length == 1 && slots[0] instanceof SimpleEntry) {
+				return (SimpleEntry<?, ?>) slots[0];
+			}
+			return null;
+		}
+	}
+
+	private static class BitmapNode extends Node {
+		final int bitmap;
+
+		BitmapNode(int bitmap, Object[] slots) {
+			super(slots);
+			this.bitmap = bitmap;
+		}
+
+		@Override
+		Object find(int shift, int hash, Object key) {
+			int bit = 1 << ((hash >>> shift) & MASK);
+			if ((bitmap & bit) == 0) {
+				return null;
+			}
+			Object s = slots[Integer.bitCount(bitmap & (bit - 1))];
+			if (s instanceof Node) {
+				return ((Node) s).find(shift + BITS, hash, key);
+			}
+			SimpleEntry<?, ?> e = (SimpleEntry<?, ?>) s;
+			return e.hash == hash && key.equals(e.getKey()) ? e.getValue() : null;
+		}
+
+		@Override
+		Node put(int shift, int hash, SimpleEntry<?, ?> ne, boolean[] added) {
+			int bit = 1 << ((hash >>> shift) & MASK);
+			int ind = Integer.bitCount(bitmap & (bit - 1));
+			if ((bitmap & bit) == 0) {
+				Object[] nslots = new Object[slots.length + 1];
+				System.arraycopy(slots, 0, nslots, 0, ind);
+				nslots[ind] = ne;
+				System.arraycopy(slots, ind, nslots, ind + 1, slots.length - ind);
+				added[0] = true;
+				return new BitmapNode(bitmap | bit, nslots);
+			}
+			Object s = slots[ind];
+			Object ns;
+			if (s instanceof Node) {
+				ns = ((Node) s).put(shift + BITS, hash, ne, added);
+			} else {
+				SimpleEntry<?, ?> e = (SimpleEntry<?, ?>) s;
+				if (e.hash == hash && e.getKey().equals(ne.getKey())) {
+					ns = e.getValue() == ne.getValue() ? e : ne;
+				} else {
+					ns = createNode(shift + BITS, e, ne);
+					added[0] = true;
+				}
+			}
+			if (ns == s) {
+				return this;
+			}
+			return new BitmapNode(bitmap, replace(slots, ind, ns));
+		}
+
+		@Override
+		Node remove(int shift, int hash, Object key) {
+			int bit = 1 << ((hash >>> shift) & MASK);
+			if ((bitmap & bit) == 0) {
+				return this;
+			}
+			int ind = Integer.bitCount(bitmap & (bit - 1));
+			Object s = slots[ind];
+			Object ns;
+			if (s instanceof Node) {
+				Node n = ((Node) s).remove(shift + BITS, hash, key);
+				if (n == s) {
+					return this;
+				}
+				SimpleEntry<?, ?> single = n == null ? null : n.singleEntry();
+				ns = single != null ? single : n;
+			} else {
+				SimpleEntry<?, ?> e = (SimpleEntry<?, ?>) s;
+				if (e.hash != hash || !key.equals(e.getKey())) {
+					return this;
+				}
+				ns = null;
+			}
+			if (ns != null) {
+				return new BitmapNode(bitmap, replace(slots, ind, ns));
+			}
+			if (slots.length == 1) {
+				return null;
+			}
+			Object[] nslots = new Object[slots.length - 1];
+			System.arraycopy(slots, 0, nslots, 0, ind);
+			System.arraycopy(slots, ind + 1, nslots, ind, slots.length - ind - 1);
+			return new BitmapNode(bitmap & ~bit, nslots);
+		}
+
+		private static Node createNode(int shift, SimpleEntry<?, ?> e1, SimpleEntry<?, ?> e2) {
+			if (e1.hash == e2.hash) {
+				return new CollisionNode(e1.hash, new Object[] { e1, e2 });
+			}
+			int b1 = (e1.hash >>> shift) & MASK;
+			int b2 = (e2.hash >>> shift) & MASK;
+			if (b1 == b2) {
+				return new BitmapNode(1 << b1, new Object[] { createNode(shift + BITS, e1, e2) });
+			}
+			return new BitmapNode((1 << b1) | (1 << b2), b1 < b2 ? new Object[] { e1, e2 } : new Object[] { e2, e1 });
+		}
+	}
+
+	// entries with the same full hash
+	private static class CollisionNode extends Node {
+		final int hash;
+
+		CollisionNode(int hash, Object[] slots) {
+			super(slots);
+			this.hash = hash;
+		}
+
+		private int indexOf(Object key) {
+			for (int i = 0; i < slots.length; i++) {
+				if (key.equals(((SimpleEntry<?, ?>) slots[i]).getKey())) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		@Override
+		Object find(int shift, int hash, Object key) {
+			if (hash != this.hash) {
+				return null;
+			}
+			int ind = indexOf(key);
+			return ind == -1 ? null : ((SimpleEntry<?, ?>) slots[ind]).getValue();
+		}
+
+		@Override
+		Node put(int shift, int hash, SimpleEntry<?, ?> ne, boolean[] added) {
+			if (hash != this.hash) {
+				// hashes differ at this or one of next levels
+				BitmapNode n = new BitmapNode(1 << ((this.hash >>> shift) & MASK), new Object[] { this });
+				return n.put(shift, hash, ne, added);
+			}
+			int ind = indexOf(ne.getKey());
+			if (ind == -1) {
+				Object[] nslots = new Object[slots.length + 1];
+				System.arraycopy(slots, 0, nslots, 0, slots.length);
+				nslots[slots.length] = ne;
+				added[0] = true;
+				return new CollisionNode(hash, nslots);
+			}
+			if (((SimpleEntry<?, ?>) slots[ind]).getValue() == ne.getValue()) {
+				return this;
+			}
+			return new CollisionNode(hash, replace(slots, ind, ne));
+		}
+
+		@Override
+		Node remove(int shift, int hash, Object key) {
+			if (hash != this.hash) {
+				return this;
+			}
+			int ind = indexOf(key);
+			if (ind == -1) {
+				return this;
+			}
+			if (slots.length == 1) {
+				return null;
+			}
+			Object[] nslots = new Object[slots.length - 1];
+			System.arraycopy(slots, 0, nslots, 0, ind);
+			System.arraycopy(slots, ind + 1, nslots, ind, slots.length - ind - 1);
+			return new CollisionNode(hash, nslots);
+		}
+	}
+
+	private static Object[] replace(Object[] slots, int ind, Object s) {
+		Object[] nslots = slots.clone();
+		nslots[ind] = s;
+		return nslots;
+	}
+
+	private static class EntryIterator<K, V> implements Iterator<Entry<K, V>> {
+		private final Deque<Object[]> slotsStack = new ArrayDeque<Object[]>();
+		private final Deque<Integer> indStack = new ArrayDeque<Integer>();
+		private Entry<K, V> next;
+
+		EntryIterator(Node root) {
+			if (root != null) {
+				slotsStack.push(root.slots);
+				indStack.push(0);
+			}
+			next = advance();
+		}
+
+		@SuppressWarnings("unchecked")
+		private Entry<K, V> advance() {
+			while (!slotsStack.isEmpty()) {
+				Object[] slots = slotsStack.peek();
+				int ind = indStack.pop();
+				if (ind >= slots.length) {
+					slotsStack.pop();
+					continue;
+				}
+				indStack.push(ind + 1);
+				Object s = slots[ind];
+				if (s instanceof Node) {
+					slotsStack.push(((Node) s).slots);
+					indStack.push(0);
+				} else {
+					return (Entry<K, V>) s;
+				}
+			}
+			return null;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		@Override
+		public Entry<K, V> next() {
+			if (next == null) {
+				throw new NoSuchElementException();
+			}
+			Entry<K, V> r = next;
+			next = advance();
+			return r;
+		}
+	}
+}
@@ -1,9 +1,17 @@
 package org.openplacereviews.opendb.ops;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.InputStreamReader;
 import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 
 import org.junit.Before;
 import org.junit.BeforeClass;
@@ -12,6 +20,8 @@ import org.openplacereviews.opendb.FailedVerificationException;
 import org.openplacereviews.opendb.OUtils;
 import org.openplacereviews.opendb.SecUtils;
 import org.openplacereviews.opendb.api.MgmtController;
+import org.openplacereviews.opendb.ops.de.CompoundKey;
+import org.openplacereviews.opendb.ops.de.OpHash;
 import org.openplacereviews.opendb.service.BlocksManager;
 import org.openplacereviews.opendb.util.JsonFormatter;
 
@@ -65,4 +75,136 @@ public class OpBlockchainTests {
 	public void testSimpleFunctionEval2() {
 		assertEquals("3", "3");
 	}
+	
+	@Test
+	public void testBlockHeadersIndex() throws FailedVerificationException {
+		OpBlock block = blc.createBlock(serverName, serverKeyPair);
+		assertEquals(block.getRawHash(), blc.getBlockHeadersById(block.getBlockId()).getRawHash());
+		assertEquals(block, blc.getFullBlockByRawHash(block.getRawHash()));
+		List<OpBlock> headers = blc.getBlockHeadersFromId(block.getBlockId());
+		assertEquals(1, headers.size());
+		assertEquals(block.getRawHash(), headers.get(0).getRawHash());
+		assertEquals(null, blc.getBlockHeadersById(block.getBlockId() + 1));
+		assertEquals(blc.getSuperBlockHash(), headers.get(0).getSuperBlockHash());
+		assertEquals(blc.getSuperBlockHash(), ((Map<?, ?>) headers.get(0).getMixedFieldsAndCacheMap().get(OpObject.F_EVAL))
+				.get(OpBlock.F_SUPERBLOCK_HASH));
+	}
+	
+	@Test
+	public void testEvictFullBlock() throws FailedVerificationException {
+		final OpBlock block = blc.createBlock(serverName, serverKeyPair);
+		OpBlockChain.BlockLoader loader = new OpBlockChain.BlockLoader() {
+
+			@Override
+			public OpBlock loadBlock(OpHash rawHash) {
+				return rawHash.equals(block.getOpHash()) ? block : null;
+			}
+		};
+		assertTrue(blc.evictFullBlock(block.getRawHash(), loader));
+		assertFalse(blc.evictFullBlock(block.getRawHash(), loader));
+		assertEquals(block, blc.getFullBlockByRawHash(block.getRawHash()));
+		assertEquals(block, blc.getSuperblockFullBlocks().peekFirst());
+		assertEquals(block.getRawHash(), blc.getBlockHeadersById(block.getBlockId()).getRawHash());
+	}
+	
+	@Test
+	public void testLoadEvictedBlock() throws FailedVerificationException {
+		final OpBlock block = blc.createBlock(serverName, serverKeyPair);
+		// persisted body doesn't have cache fields
+		final OpBlock loaded = new OpBlock(block, true, false).makeImmutable();
+		OpBlockChain.BlockLoader loader = new OpBlockChain.BlockLoader() {
+
+			@Override
+			public OpBlock loadBlock(OpHash rawHash) {
+				return rawHash.equals(block.getOpHash()) ? loaded : null;
+			}
+		};
+		assertFalse(blc.clearEvictedBody(block.getRawHash()));
+		assertTrue(blc.evictFullBlock(block.getRawHash(), loader));
+		assertTrue(blc.clearEvictedBody(block.getRawHash()));
+		OpBlock res = blc.getFullBlockByRawHash(block.getRawHash());
+		assertTrue(res == loaded);
+		assertEquals(block.getOperations().size(), res.getOperations().size());
+		for (int i = 0; i < res.getOperations().size(); i++) {
+			Object vld = block.getOperations().get(i).getCacheObject(OpObject.F_VALIDATION);
+			assertTrue(vld != null);
+			assertEquals(vld, res.getOperations().get(i).getCacheObject(OpObject.F_VALIDATION));
+		}
+	}
+	
+	@Test
+	public void testLoadEvictedBlockFailed() throws FailedVerificationException {
+		OpBlock block = blc.createBlock(serverName, serverKeyPair);
+		OpBlockChain.BlockLoader loader = new OpBlockChain.BlockLoader() {
+
+			@Override
+			public OpBlock loadBlock(OpHash rawHash) {
+				return null;
+			}
+		};
+		assertTrue(blc.evictFullBlock(block.getRawHash(), loader));
+		assertTrue(blc.clearEvictedBody(block.getRawHash()));
+		try {
+			blc.getFullBlockByRawHash(block.getRawHash());
+			fail();
+		} catch (IllegalStateException e) {
+			assertTrue(e.getMessage().contains(block.getRawHash()));
+		}
+	}
+	
+	@Test
+	public void testCompoundKeyCodePointOrder() {
+		// U+1F600 (surrogate pair) goes after U+FF21 in utf-8 / "C" collation, but before it in utf-16
+		CompoundKey bmp = new CompoundKey("a\uFF21", null);
+		CompoundKey supplementary = new CompoundKey("a\uD83D\uDE00", null);
+		assertTrue(bmp.compareTo(supplementary) < 0);
+		assertTrue(supplementary.compareTo(bmp) > 0);
+		assertTrue(new CompoundKey("a", "\uD83D\uDE00").compareTo(new CompoundKey("a", "\uE000")) > 0);
+		assertTrue(new CompoundKey("a", null).compareTo(new CompoundKey("a", "\uD83D\uDE00")) < 0);
+		assertEquals(0, supplementary.compareTo(new CompoundKey("a\uD83D\uDE00", null)));
+		TreeMap<CompoundKey, String> sorted = new TreeMap<CompoundKey, String>();
+		for (String k : new String[] { "\uD83D\uDE00", "\uFFFD", "z", "\uE000" }) {
+			sorted.put(new CompoundKey(k, null), k);
+		}
+		assertEquals(Arrays.asList("z", "\uE000", "\uFFFD", "\uD83D\uDE00"), new ArrayList<String>(sorted.values()));
+	}
+	
+	@Test
+	public void testDeleteNotHexRef() throws FailedVerificationException {
+		OpOperation op = new OpOperation();
+		op.setType(OpBlockchainRules.OP_OPERATION);
+		op.addOld("not-a-hash", 0);
+		op.setSignedBy(serverName);
+		op = blc.getRules().generateHashAndSign(op, serverKeyPair);
+		op.makeImmutable();
+		try {
+			blc.addOperation(op);
+			fail();
+		} catch (IllegalArgumentException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("wasn't found"));
+		}
+	}
+	
+	@Test
+	public void testObjectsPages() {
+		OpBlockChain.ObjectsSearchRequest all = new OpBlockChain.ObjectsSearchRequest();
+		blc.getObjects(OpBlockchainRules.OP_OPERATION, all);
+		TreeMap<CompoundKey, OpObject> expected = new TreeMap<CompoundKey, OpObject>();
+		for (OpObject o : all.result) {
+			expected.put(new CompoundKey(0, o.getId()), o);
+		}
+		List<OpObject> paged = new ArrayList<OpObject>();
+		CompoundKey after = null;
+		while (true) {
+			OpBlockChain.ObjectsSearchRequest r = new OpBlockChain.ObjectsSearchRequest();
+			r.limit = 3;
+			blc.getObjectsPage(OpBlockchainRules.OP_OPERATION, after, r);
+			paged.addAll(r.result);
+			if (r.result.size() < r.limit) {
+				break;
+			}
+			after = new CompoundKey(0, r.result.get(r.result.size() - 1).getId());
+		}
+		assertEquals(new ArrayList<OpObject>(expected.values()), paged);
+	}
 }
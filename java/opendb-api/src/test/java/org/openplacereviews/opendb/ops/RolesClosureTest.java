@@ -0,0 +1,43 @@
+package org.openplacereviews.opendb.ops;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class RolesClosureTest {
+
+	private OpObject role(String id, String... superRoles) {
+		OpObject o = new OpObject();
+		o.putObjectValue(OpObject.F_ID, Arrays.asList(id));
+		o.putObjectValue(OpBlockchainRules.F_SUPER_ROLES, Arrays.asList(superRoles));
+		return o.makeImmutable();
+	}
+
+	@Test
+	public void testIncrementalClosure() {
+		List<OpObject> roles = new ArrayList<OpObject>();
+		roles.add(role("owner"));
+		roles.add(role("administrator", "owner"));
+		RolesClosure prev = RolesClosure.build(roles, null);
+		roles.add(role("moderator", "administrator"));
+		roles.add(role("user", "moderator", "owner"));
+		RolesClosure incremental = RolesClosure.build(roles, prev);
+		RolesClosure full = RolesClosure.build(roles, null);
+		assertEquals(full.getRolesMap(), incremental.getRolesMap());
+		assertEquals("[administrator, moderator, owner, user]", incremental.getRolesMap().get("owner").toString());
+		assertEquals("[moderator, user]", incremental.getRolesMap().get("moderator").toString());
+
+		OpObject grant = new OpObject();
+		grant.putObjectValue(OpBlockchainRules.F_ROLES, Arrays.asList("administrator", "tester"));
+		grant.makeImmutable();
+		assertTrue(incremental.hasRole(grant, "user"));
+		assertTrue(incremental.hasRole(grant, "tester"));
+		assertFalse(incremental.hasRole(grant, "owner"));
+	}
+}
@@ -0,0 +1,31 @@
+package org.openplacereviews.opendb.util;
+
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.openplacereviews.opendb.SecUtils;
+
+public class BloomFilterTest {
+
+	private byte[] hash(String s) {
+		return SecUtils.calculateHash(SecUtils.HASH_SHA256, s.getBytes(), null);
+	}
+
+	@Test
+	public void testFilterMembership() {
+		int n = 2000;
+		BloomFilter filter = BloomFilter.create(n);
+		for (int i = 0; i < n; i++) {
+			filter.put(hash("op" + i));
+		}
+		BloomFilter loaded = BloomFilter.fromBytes(filter.toBytes());
+		int falsePositives = 0;
+		for (int i = 0; i < n; i++) {
+			assertTrue(loaded.mightContain(hash("op" + i)));
+			if (loaded.mightContain(hash("missing" + i))) {
+				falsePositives++;
+			}
+		}
+		assertTrue("False positives " + falsePositives, falsePositives < n / 20);
+	}
+}
@@ -61,4 +61,26 @@ public class OpExprEvaluatorTest {
 		assertEquals("3", evaluateExpr("str:second('1:3')"));
 		
 	}
+	
+	@Test
+	public void testCompiledExpressionReuse() {
+		Gson gson = new Gson();
+		OpExprEvaluator expr = OpExprEvaluator.parseExpression("std:eq(.c.1, str:second('1:2'))");
+		for (String js : new String[] { SIMPLE_JSON, "{'c' : ['1', '3']}", "{'c' : ['2']}" }) {
+			JsonElement obj = gson.fromJson(js, JsonElement.class);
+			OpExprEvaluator.EvaluationContext ectx = new OpExprEvaluator.EvaluationContext(null, obj.getAsJsonObject(), null, null);
+			assertEquals(js.equals(SIMPLE_JSON), expr.evaluateBoolean(ectx));
+		}
+		// unknown function fails only when it is evaluated
+		OpExprEvaluator.parseExpression("std:unknown(1)");
+		evaluateExprForException("std:unknown(1)");
+	}
+	
+	@Test
+	public void testRootFields() {
+		assertEquals("[a, e]", OpExprEvaluator.parseExpression("std:eq(.a, this.e.a)").getRootFields().toString());
+		assertEquals("[]", OpExprEvaluator.parseExpression("m:plus(1, 2)").getRootFields().toString());
+		assertEquals(null, OpExprEvaluator.parseExpression("std:size(this)").getRootFields());
+		assertEquals(null, OpExprEvaluator.parseExpression("blc:find('sys.role', .a)").getRootFields());
+	}
 }
@@ -0,0 +1,76 @@
+package org.openplacereviews.opendb.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class PersistentHashMapTest {
+
+	// few hashes to test collisions and deep tries
+	private static class Key {
+		final int id;
+
+		Key(int id) {
+			this.id = id;
+		}
+
+		@Override
+		public int hashCode() {
+			return (id % 3 == 0) ? id % 50 : id * 0x9E3779B9;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof Key && ((Key) obj).id == id;
+		}
+	}
+
+	@Test
+	public void testRandomOperations() {
+		Random r = new Random(17);
+		Map<Key, Integer> expected = new HashMap<Key, Integer>();
+		PersistentHashMap<Key, Integer> map = PersistentHashMap.empty();
+		PersistentHashMap<Key, Integer> snapshot = null;
+		Map<Key, Integer> expectedSnapshot = null;
+		for (int i = 0; i < 20000; i++) {
+			Key k = new Key(r.nextInt(3000));
+			if (r.nextInt(3) == 0) {
+				expected.remove(k);
+				map = map.minus(k);
+			} else {
+				expected.put(k, i);
+				map = map.plus(k, i);
+			}
+			if (i == 10000) {
+				snapshot = map;
+				expectedSnapshot = new HashMap<Key, Integer>(expected);
+			}
+		}
+		assertEquals(expected, map.asMap());
+		assertEquals(expected.size(), map.size());
+		assertEquals(expectedSnapshot, snapshot.asMap());
+		int cnt = 0;
+		for (Entry<Key, Integer> e : map) {
+			assertEquals(expected.get(e.getKey()), e.getValue());
+			cnt++;
+		}
+		assertEquals(expected.size(), cnt);
+
+		PersistentHashMap<Key, Integer> merged = snapshot.plusAll(map);
+		Map<Key, Integer> expectedMerged = new HashMap<Key, Integer>(expectedSnapshot);
+		expectedMerged.putAll(expected);
+		assertEquals(expectedMerged, merged.asMap());
+
+		for (Key k : expected.keySet()) {
+			map = map.minus(k);
+		}
+		assertEquals(0, map.size());
+		assertNull(map.get(new Key(3)));
+	}
+}